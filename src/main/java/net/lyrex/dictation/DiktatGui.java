@@ -1,20 +1,26 @@
 package net.lyrex.dictation;
 
+import com.google.cloud.texttospeech.v1.AudioEncoding;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
+import net.lyrex.audio.AudioCache;
+import net.lyrex.audio.IAudioCache;
 import net.lyrex.image.ImageContainer;
 import net.lyrex.image.ImageProcessor;
+import net.lyrex.nlp.NLPPipelines;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.io.*;
 
 import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
 
 public class DiktatGui extends JFrame {
     private JButton selectSourceButton;
@@ -30,6 +36,10 @@ public class DiktatGui extends JFrame {
 
     private final OptionDialogue optionWindow = new OptionDialogue();
     private final LoadingDialogue loadingDialogue = new LoadingDialogue();
+    private final JMenuItem exportMenuItem = new JMenuItem("Export als WAV");
+
+    // owned by the window so it outlives option changes and controller instances
+    private final IAudioCache audioCache = new AudioCache(AudioEncoding.LINEAR16);
 
     @NotNull
     private final DictateController dictateController;
@@ -39,9 +49,9 @@ public class DiktatGui extends JFrame {
         loadingDialogue.pack();
         loadingDialogue.setLocationRelativeTo(null);
         loadingDialogue.setAlwaysOnTop(true);
-        loadingDialogue.setVisible(true);
 
-        dictateController = new DictateController("", optionWindow.getDictateOptions());
+        // the nlp pipeline is only loaded on first use, the warm-up below loads it while the window is already shown
+        dictateController = new DictateController("", optionWindow.getDictateOptions(), audioCache);
 
         // set-up window
         this.setTitle("Diktat Buddy");
@@ -56,35 +66,36 @@ public class DiktatGui extends JFrame {
         settingsMenuItem.addActionListener(e -> optionWindow.setVisible(true));
         fileMenu.add(settingsMenuItem);
 
-        var exportMenuItem = new JMenuItem("Export als WAV");
         exportMenuItem.addActionListener(e -> {
-            loadingDialogue.setVisible(true);
-
-            final var dictateAudio = dictateController.generateAudioFromDicate();
-            loadingDialogue.setVisible(false);
+            final JFileChooser fc = new JFileChooser();
+            fc.setFileFilter(new FileNameExtensionFilter("Audio-Datei (.wav)", "wav"));
 
-            if (dictateAudio.length == 0) {
-                JOptionPane.showMessageDialog(this, "Keine Daten gefunden.", "Warnung", JOptionPane.WARNING_MESSAGE);
+            int returnVal = fc.showOpenDialog(mainPanel);
+            if (returnVal != JFileChooser.APPROVE_OPTION) {
                 return;
             }
 
-            final JFileChooser fc = new JFileChooser();
-            fc.setFileFilter(new FileNameExtensionFilter("Audio-Datei (.wav)", "wav"));
+            File file = fc.getSelectedFile();
+            if (!file.getName().toLowerCase().endsWith(".wav")) {
+                file = new File(file + ".wav");
+            }
 
-            int returnVal = fc.showOpenDialog(mainPanel);
-            if (returnVal == JFileChooser.APPROVE_OPTION) {
-                File file = fc.getSelectedFile();
+            // the audio is streamed straight into the selected file
+            loadingDialogue.setVisible(true);
 
-                if (!file.getName().toLowerCase().endsWith(".wav")) {
-                    file = new File(file + ".wav");
-                }
+            boolean exported = false;
+            try {
+                exported = dictateController.exportDictate(file);
+            } catch (IOException ioException) {
+                // todo(tobias): improve error handling
+                ioException.printStackTrace();
+                return;
+            } finally {
+                loadingDialogue.setVisible(false);
+            }
 
-                try (var outputStream = new FileOutputStream(file, false)) {
-                    outputStream.write(dictateAudio);
-                } catch (IOException ioException) {
-                    // todo(tobias): improve error handling
-                    ioException.printStackTrace();
-                }
+            if (!exported) {
+                JOptionPane.showMessageDialog(this, "Keine Daten gefunden.", "Warnung", JOptionPane.WARNING_MESSAGE);
             }
         });
         fileMenu.add(exportMenuItem);
@@ -162,26 +173,35 @@ public class DiktatGui extends JFrame {
             }
         });
 
+        // only the edited characters are passed on, the controller dissects the sentences around them once typing pauses
         diktatText.getDocument().addDocumentListener(new DocumentListener() {
             @Override
             public void insertUpdate(DocumentEvent e) {
-                dictateController.setDictateText(diktatText.getText());
+                try {
+                    var inserted = e.getDocument().getText(e.getOffset(), e.getLength());
+                    dictateController.editText(e.getOffset(), 0, inserted);
+                } catch (BadLocationException badLocationException) {
+                    badLocationException.printStackTrace();
+                    dictateController.setDictateText(diktatText.getText());
+                }
             }
 
             @Override
             public void removeUpdate(DocumentEvent e) {
-                dictateController.setDictateText(diktatText.getText());
+                dictateController.editText(e.getOffset(), e.getLength(), "");
             }
 
             @Override
             public void changedUpdate(DocumentEvent e) {
-                dictateController.setDictateText(diktatText.getText());
+                // attribute changes leave the text as it is
             }
         });
 
         this.pack();
-        loadingDialogue.buttonOK.setEnabled(true);
-        loadingDialogue.setVisible(false);
+
+        // dictation needs the nlp pipeline, so it stays disabled until the pipeline is loaded
+        setDictationEnabled(false);
+        new WarmUpWorker().execute();
     }
 
     {
@@ -255,6 +275,36 @@ public class DiktatGui extends JFrame {
         textPane.revalidate();
     }
 
+    private void setDictationEnabled(boolean enabled) {
+        dictateButton.setEnabled(enabled);
+        previousSentenceButton.setEnabled(enabled);
+        repeatSentenceButton.setEnabled(enabled);
+        nextSentenceButton.setEnabled(enabled);
+        exportMenuItem.setEnabled(enabled);
+    }
+
+    private class WarmUpWorker extends SwingWorker<Object, Object> {
+        @Nullable
+        @Override
+        protected Object doInBackground() {
+            NLPPipelines.warmUp(optionWindow.getDictateOptions().getLanguage());
+
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get();
+            } catch (InterruptedException | ExecutionException exception) {
+                // dictation loads the pipeline again on its own if the warm-up failed
+                exception.printStackTrace();
+            }
+
+            setDictationEnabled(true);
+        }
+    }
+
     private class DictatePreviousSentenceWorker extends SwingWorker<Object, Object> {
         @Nullable
         @Override
@@ -3,46 +3,337 @@ package net.lyrex.audio
 import com.google.cloud.texttospeech.v1.AudioEncoding
 import mu.KotlinLogging
 
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
 private val logger = KotlinLogging.logger {}
 
 
 interface IAudioCache {
-    fun getAudioForText(input: String): ByteArray
+    val stats: AudioCacheStats
+
+    fun getAudioForText(input: String, voice: Voice, speakingSpeed: SpeakingSpeed): PcmClip
+
+    // hits in the memory tier complete right away, everything else is loaded on the given executor
+    fun getAudioForTextAsync(
+        input: String, voice: Voice, speakingSpeed: SpeakingSpeed,
+        executor: Executor = AudioCache.synthesisExecutor
+    ): CompletableFuture<PcmClip>
+
+    // loads the audio of all parts of a sentence and of the full sentence ahead of the individual lookups
+    fun prepareSentenceAsync(
+        sentenceParts: List<String>, voice: Voice, speakingSpeed: SpeakingSpeed,
+        executor: Executor = AudioCache.synthesisExecutor
+    ): CompletableFuture<Void?>
+}
+
+data class AudioCacheStats(
+    val memoryHits: Long,
+    val compressedHits: Long,
+    val diskHits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val residentBytes: Long,
+    val compressedResidentBytes: Long,
+    val encodeCpuMillis: Long,
+    val decodeCpuMillis: Long
+) {
+    val hits: Long
+        get() = memoryHits + compressedHits + diskHits
 }
 
-//todo(tobias): Add additional file level cache based on some hash function to avoid repeated calls to google for
-//               the same text
-class AudioCache(
+// Keys cover voice and speaking speed as well as the text, so a single instance can be shared across option changes
+// and controllers. Switching back to a previously used voice or speed is served from the cache.
+//
+// The memory tier holds parsed pcm clips, the disk tier keeps the wav files as they were synthesized. With a budget for
+// compressed audio, a second memory tier keeps every clip losslessly compressed as well, and the pcm tier in front of
+// it only needs to hold the clips that are about to be played. Clips that dropped out of the pcm tier are decoded
+// again on demand, on the synthesis executor when they are prefetched.
+class AudioCache @JvmOverloads constructor(
     private val encoding: AudioEncoding,
-    private val voice: Voice,
-    private val speakingSpeed: SpeakingSpeed
+    private val diskCache: DiskAudioCache? = DiskAudioCache.shared,
+    maxMemoryBytes: Long = MemoryAudioCache.defaultMaxBytes,
+    private val sentenceSynthesis: Boolean = java.lang.Boolean.getBoolean("diktat.tts.sentenceSynthesis"),
+    compressedMemoryBytes: Long = defaultCompressedMemoryBytes
 ) : IAudioCache {
-    private val _cache: MutableMap<String, ByteArray> = hashMapOf()
+    companion object {
+        private val threadCounter = AtomicInteger()
+        private val threadMXBean = ManagementFactory.getThreadMXBean()
+
+        // 0 disables the compressed tier
+        @JvmStatic
+        val defaultCompressedMemoryBytes: Long
+            get() = java.lang.Long.getLong("diktat.audioCache.compressedMemoryBytes", 0L)
+
+        // shared by all caches, synthesis is network bound so a handful of threads keeps enough requests in flight
+        @JvmStatic
+        val synthesisExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(Integer.getInteger("diktat.audioCache.synthesisThreads", 4)) { r ->
+                val thread = Thread(r, "audio-synthesis-${threadCounter.incrementAndGet()}")
+                thread.isDaemon = true
+                thread
+            }
+        }
+    }
+
+    private val _cache = MemoryAudioCache<AudioCacheKey, PcmClip>(maxMemoryBytes, PcmClip::byteLength)
+    private val _compressed = if (compressedMemoryBytes > 0) {
+        MemoryAudioCache<AudioCacheKey, CompressedClip>(compressedMemoryBytes, CompressedClip::byteLength)
+    } else {
+        null
+    }
+
+    // one future per key that is currently being loaded, concurrent requests for the same key share it
+    private val _inFlight = ConcurrentHashMap<AudioCacheKey, CompletableFuture<PcmClip>>()
+
+    private val _diskHits = AtomicLong()
+    private val _misses = AtomicLong()
+    private val _encodeNanos = AtomicLong()
+    private val _decodeNanos = AtomicLong()
 
     init {
-        require(
-            encoding == AudioEncoding.LINEAR16
-                    || encoding == AudioEncoding.MP3
-                    || encoding == AudioEncoding.OGG_OPUS
-        ) { "encoding must be a valid audio encofing" }
+        // the clips are handed out as pcm, which java sound can only decode from LINEAR16
+        require(encoding == AudioEncoding.LINEAR16) { "encoding must be LINEAR16" }
 
-        logger.info { "rebuilding audio cache with with encoding: $" }
+        logger.info {
+            "creating audio cache with encoding: $encoding, memory budget: $maxMemoryBytes bytes, " +
+                "compressed memory budget: $compressedMemoryBytes bytes"
+        }
     }
 
-    override fun getAudioForText(input: String): ByteArray {
-        synchronized(_cache) {
-            logger.debug { "Finding audio for input: \"$input\"" }
+    override val stats: AudioCacheStats
+        get() = AudioCacheStats(
+            _cache.hits, _compressed?.hits ?: 0L, _diskHits.get(), _misses.get(),
+            _cache.evictions, _cache.residentBytes, _compressed?.residentBytes ?: 0L,
+            _encodeNanos.get() / 1_000_000, _decodeNanos.get() / 1_000_000
+        )
+
+    override fun getAudioForText(input: String, voice: Voice, speakingSpeed: SpeakingSpeed): PcmClip {
+        logger.debug { "Finding audio for input: \"$input\"" }
 
-            // check if the cache already contains the audio for the requested string
-            if (_cache.containsKey(input)) {
-                logger.debug { "audio for input was found in cache" }
-                return _cache[input]!!
+        // check if the cache already contains the audio for the requested string
+        val key = AudioCacheKey(input, voice, speakingSpeed, encoding)
+        val cachedAudio = _cache[key]
+        if (cachedAudio != null) {
+            logger.debug { "audio for input was found in cache" }
+            return cachedAudio
+        }
+
+        // the first caller loads the audio on its own thread, everyone else waits for that result
+        val (future, isLoader) = claimLoad(key)
+        if (isLoader) {
+            load(key, voice, future)
+        }
+
+        try {
+            return future.join()
+        } catch (e: CompletionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    override fun getAudioForTextAsync(
+        input: String, voice: Voice, speakingSpeed: SpeakingSpeed,
+        executor: Executor
+    ): CompletableFuture<PcmClip> {
+        val key = AudioCacheKey(input, voice, speakingSpeed, encoding)
+        val cachedAudio = _cache[key]
+        if (cachedAudio != null) {
+            return CompletableFuture.completedFuture(cachedAudio)
+        }
+
+        val (future, isLoader) = claimLoad(key)
+        if (isLoader) {
+            executor.execute { load(key, voice, future) }
+        }
+
+        return future
+    }
+
+    override fun prepareSentenceAsync(
+        sentenceParts: List<String>, voice: Voice, speakingSpeed: SpeakingSpeed,
+        executor: Executor
+    ): CompletableFuture<Void?> {
+        // splitting the response into parts relies on raw pcm, which is only available for LINEAR16
+        if (!sentenceSynthesis || encoding != AudioEncoding.LINEAR16 || sentenceParts.size < 2) {
+            return CompletableFuture.completedFuture(null)
+        }
+
+        val sentenceText = sentenceParts.joinToString(separator = " ")
+        val texts = sentenceParts + sentenceText
+
+        // claim every key that is neither cached nor already being loaded, lookups for them wait for this request
+        val claimed = texts.distinct()
+            .map { text -> AudioCacheKey(text, voice, speakingSpeed, encoding) }
+            .filter { key -> _cache.peek(key) == null && _compressed?.peek(key) == null && !isOnDisk(key) }
+            .mapNotNull { key ->
+                val future = CompletableFuture<PcmClip>()
+                if (_inFlight.putIfAbsent(key, future) == null) Pair(key, future) else null
             }
 
-            val audio = AudioProcessor.textToAudio(input, encoding, voice, speakingSpeed)
-            _cache[input] = audio
+        if (claimed.isEmpty()) {
+            return CompletableFuture.completedFuture(null)
+        }
+
+        return CompletableFuture.runAsync({
+            val clips = try {
+                _misses.incrementAndGet()
+                SynthesisScheduler.acquireRequestPermit()
+                SentenceSynthesizer.sentenceToClips(sentenceParts, voice, speakingSpeed)
+            } catch (e: Throwable) {
+                logger.warn(e) { "could not synthesize sentence in one request, synthesizing parts one by one" }
 
-            return audio
+                // every part is a request of its own, they run side by side like unrelated lookups
+                claimed.forEach { (key, future) ->
+                    try {
+                        executor.execute { load(key, voice, future) }
+                    } catch (e: RejectedExecutionException) {
+                        load(key, voice, future)
+                    }
+                }
+                return@runAsync
+            }
+
+            // every claimed key is completed and released on its own, like in load(), so a failing part can not leave
+            // lookups of the other parts waiting forever
+            claimed.forEach { (key, future) ->
+                try {
+                    val clip = clips[texts.indexOf(key.text)]
+                    remember(key, clip)
+                    if (!clip.isEmpty) {
+                        writeToDisk(key, clip.toWav())
+                    }
+
+                    future.complete(clip)
+                } catch (e: Throwable) {
+                    future.completeExceptionally(e)
+                } finally {
+                    _inFlight.remove(key, future)
+                }
+            }
+        }, executor)
+    }
+
+    private fun claimLoad(key: AudioCacheKey): Pair<CompletableFuture<PcmClip>, Boolean> {
+        val future = CompletableFuture<PcmClip>()
+        val existing = _inFlight.putIfAbsent(key, future)
+        if (existing != null) {
+            logger.debug { "audio for input is already being loaded, waiting for it" }
+            return Pair(existing, false)
+        }
+
+        return Pair(future, true)
+    }
+
+    private fun load(key: AudioCacheKey, voice: Voice, future: CompletableFuture<PcmClip>) {
+        try {
+            // a concurrent load may have finished between the memory lookup and claiming the key
+            val audio = _cache.peek(key) ?: loadUncached(key, voice)
+            future.complete(audio)
+        } catch (e: Throwable) {
+            future.completeExceptionally(e)
+        } finally {
+            _inFlight.remove(key, future)
+        }
+    }
+
+    private fun loadUncached(key: AudioCacheKey, voice: Voice): PcmClip {
+        val compressed = _compressed?.get(key)
+        if (compressed != null) {
+            logger.debug { "audio for input was found in compressed cache" }
+
+            val start = cpuNanos()
+            val clip = compressed.decompress()
+            _decodeNanos.addAndGet(cpuNanos() - start)
+
+            _cache[key] = clip
+            return clip
+        }
+
+        // check if the audio was synthesized in a previous session
+        val storedAudio = readFromDisk(key)
+        if (storedAudio != null) {
+            logger.debug { "audio for input was found in disk cache" }
+            _diskHits.incrementAndGet()
+
+            val clip = PcmClip.fromWav(storedAudio)
+            remember(key, clip)
+            return clip
+        }
+
+        // no lock is held here, so synthesis for unrelated texts runs concurrently
+        _misses.incrementAndGet()
+        SynthesisScheduler.acquireRequestPermit()
+        val audio = AudioProcessor.textToAudio(key.text, encoding, voice, key.speakingSpeed)
+        writeToDisk(key, audio)
+
+        val clip = PcmClip.fromWav(audio)
+        remember(key, clip)
+        return clip
+    }
+
+    private fun remember(key: AudioCacheKey, clip: PcmClip) {
+        _cache[key] = clip
+
+        val compressedCache = _compressed ?: return
+        if (clip.isEmpty) {
+            return
+        }
+
+        val start = cpuNanos()
+        val compressed = CompressedClip.compress(clip)
+        _encodeNanos.addAndGet(cpuNanos() - start)
+
+        if (compressed != null) {
+            compressedCache[key] = compressed
+        }
+    }
+
+    // cpu time of the current thread where the jvm measures it, wall time otherwise
+    private fun cpuNanos(): Long {
+        return if (threadMXBean.isCurrentThreadCpuTimeSupported && threadMXBean.isThreadCpuTimeEnabled) {
+            threadMXBean.currentThreadCpuTime
+        } else {
+            System.nanoTime()
+        }
+    }
+
+    private fun isOnDisk(key: AudioCacheKey): Boolean {
+        return try {
+            diskCache?.contains(key) ?: false
+        } catch (e: IOException) {
+            false
         }
     }
-}
\ No newline at end of file
+
+    private fun readFromDisk(key: AudioCacheKey): ByteArray? {
+        return try {
+            diskCache?.get(key)
+        } catch (e: IOException) {
+            logger.warn(e) { "could not read audio from disk cache" }
+            null
+        }
+    }
+
+    private fun writeToDisk(key: AudioCacheKey, audio: ByteArray) {
+        // failed synthesis yields empty audio, which must not be persisted
+        if (audio.isEmpty()) {
+            return
+        }
+
+        try {
+            diskCache?.put(key, audio)
+        } catch (e: IOException) {
+            logger.warn(e) { "could not write audio to disk cache" }
+        }
+    }
+}
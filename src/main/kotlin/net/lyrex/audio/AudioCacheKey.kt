@@ -0,0 +1,32 @@
+package net.lyrex.audio
+
+import com.google.cloud.texttospeech.v1.AudioEncoding
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+
+data class AudioCacheKey(
+    val text: String,
+    val voiceName: String,
+    val language: Language,
+    val speakingSpeed: SpeakingSpeed,
+    val encoding: AudioEncoding
+) {
+    constructor(text: String, voice: Voice, speakingSpeed: SpeakingSpeed, encoding: AudioEncoding) :
+            this(text, voice.name, voice.language, speakingSpeed, encoding)
+
+    // the first 128 bit of a sha-256 over all fields are used as the content address on disk
+    fun contentHash(): ContentHash {
+        val digest = MessageDigest.getInstance("SHA-256")
+        listOf(text, voiceName, language.languageString, speakingSpeed.name, encoding.name).forEach { field ->
+            digest.update(field.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+        }
+
+        val buffer = ByteBuffer.wrap(digest.digest())
+        return ContentHash(buffer.long, buffer.long)
+    }
+}
+
+data class ContentHash(val high: Long, val low: Long)
@@ -1,10 +1,13 @@
 package net.lyrex.audio
 
 import mu.KotlinLogging
-import java.io.ByteArrayInputStream
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
 import javax.sound.sampled.AudioSystem
+import javax.sound.sampled.Clip
 import javax.sound.sampled.LineEvent
 
 private val logger = KotlinLogging.logger {}
@@ -12,146 +15,166 @@ private val logger = KotlinLogging.logger {}
 interface IAudioPlayer {
     val isPlaying: Boolean
 
-    fun play(audioBytes: ByteArray)
-    fun resume()
+    // true if a segment played while another one is still playing is queued behind it instead of replacing it
+    val queuesSegments: Boolean
+
+    // the returned futures complete once the playback stops, because it played to the end or was paused or stopped
+    fun play(clip: PcmClip): CompletableFuture<Void?>
+    fun playSilence(duration: Duration): CompletableFuture<Void?>
+    fun resume(): CompletableFuture<Void?>
     fun pause()
     fun stop()
     fun waitUntilPlayingIsOver(timeoutSeconds: Int = -1)
 }
 
+// Plays one clip at a time. The clip stays open until the next one is played or the player is stopped, so a pause
+// only stops the clip and a resume starts it again at the frame it was paused at.
 class AudioPlayer : IAudioPlayer {
-    private class AudioPlayerRunner(private val audioBytes: ByteArray) : Runnable {
-        var isPlaying = false
-
-        override fun run() {
-            logger.info { "AudioPlaybackRunner executed" }
-
-            ByteArrayInputStream(audioBytes).use { stream ->
-                AudioSystem.getAudioInputStream(stream).use { ais ->
-                    // if we were interrupted previously, go to the interrupted frame and start playback from there
-                    if (_interruptedAtFrame != 0L) {
-                        logger.info { "Resuming audio playback at frame $_interruptedAtFrame" }
-                        val bytesToSkip = _interruptedAtFrame * ais.frameLength
-                        ais.skip(bytesToSkip)
-                    }
-
-                    logger.info { "Initializing audio playback" }
-                    AudioSystem.getClip().use { clip ->
-                        // add listener to know when we stopped playback
-                        clip.addLineListener { e ->
-                            if (e.type == LineEvent.Type.START) {
-                                isPlaying = true
-                            }
-
-                            if (e.type == LineEvent.Type.STOP) {
-                                synchronized(_lock) {
-                                    logger.debug { "audio playback ended" }
-
-                                    isPlaying = false
-                                }
-                            }
-
-                            synchronized(_lock) {
-                                _lock.notifyAll()
-                            }
-                        }
-
-                        try {
-                            logger.debug { "starting audio playback" }
-                            clip.open(ais)
-                            clip.start()
-
-                            // wait until the clip is done
-                            do {
-                                synchronized(_lock) {
-                                    _lock.wait();
-                                }
-                            } while (clip.isRunning);
-
-                            clip.drain();
-                            clip.stop();
-                        } catch (e: InterruptedException) {
-                            _interruptedAtFrame = clip.longFramePosition
-                        }
-                    }
-                }
-            }
-        }
-
-        private val _lock = Object()
-        private var _interruptedAtFrame: Long = 0L
-    }
-
     private val lock = Object()
-    private var _audioThread: Thread? = null
+    private var _clip: Clip? = null
+    private var _playback: CompletableFuture<Void?> = CompletableFuture.completedFuture(null)
+    private var _startFrame = 0L
+    private var _silenceEnd = 0L
+    private var _silenceRemaining = 0L
     private var paused = false
 
-    override fun play(audioBytes: ByteArray) {
+    override val queuesSegments: Boolean
+        get() = false
+
+    override fun play(clip: PcmClip): CompletableFuture<Void?> {
         synchronized(lock) {
-            if (_audioThread != null) {
-                stop()
-                paused = false
+            stop()
+
+            val playback = CompletableFuture<Void?>()
+            _playback = playback
+            if (clip.isEmpty) {
+                playback.complete(null)
+                return playback
+            }
+
+            try {
+                logger.debug { "starting audio playback" }
+
+                // the pcm is handed to the line as is, the wav header was parsed when the clip was cached
+                val line = AudioSystem.getClip()
+                line.addLineListener { e -> onLineEvent(line, e) }
+                clip.withArray { array, offset, length -> line.open(clip.format, array, offset, length) }
+
+                _clip = line
+                _startFrame = 0L
+                line.start()
+            } catch (e: Exception) {
+                // nobody waits forever for a clip that could not be played
+                logger.error(e) { "audio playback failed" }
+                playback.complete(null)
             }
 
-            _audioThread = Thread(AudioPlayerRunner(audioBytes))
-            _audioThread!!.start()
+            return playback
         }
     }
 
-    override fun resume() {
-        if (paused && _audioThread != null) {
-            _audioThread!!.run()
+    // a clip line per pause is not worth it, the silence is a timer that pause() and stop() can cut short
+    override fun playSilence(duration: Duration): CompletableFuture<Void?> {
+        synchronized(lock) {
+            stop()
+            return startSilence(TimeUnit.MILLISECONDS.toNanos(duration.toMillis()))
+        }
+    }
+
+    override fun resume(): CompletableFuture<Void?> {
+        synchronized(lock) {
+            if (!paused) {
+                return CompletableFuture.completedFuture(null)
+            }
             paused = false
+
+            if (_silenceRemaining > 0) {
+                return startSilence(_silenceRemaining)
+            }
+
+            val clip = _clip
+            if (clip == null || clip.longFramePosition >= clip.frameLength) {
+                return CompletableFuture.completedFuture(null)
+            }
+
+            logger.debug { "resuming audio playback at frame ${clip.longFramePosition}" }
+            _playback = CompletableFuture()
+            _startFrame = clip.longFramePosition
+            clip.start()
+
+            return _playback
         }
     }
 
     override fun pause() {
         synchronized(lock) {
-            _audioThread?.interrupt()
-            _audioThread?.join()
+            if (_playback.isDone) {
+                return
+            }
+
             paused = true
+            if (_silenceEnd != 0L) {
+                _silenceRemaining = maxOf(0L, _silenceEnd - System.nanoTime())
+                _silenceEnd = 0L
+            }
+
+            // a stopped clip keeps its frame position
+            _clip?.stop()
+            _playback.complete(null)
         }
     }
 
     override fun stop() {
         synchronized(lock) {
-            _audioThread?.interrupt()
-            _audioThread?.join()
-            _audioThread = null
+            _clip?.let { clip ->
+                clip.stop()
+                clip.close()
+            }
+            _clip = null
+            _silenceEnd = 0L
+            _silenceRemaining = 0L
+            _playback.complete(null)
             paused = false
         }
     }
 
     override fun waitUntilPlayingIsOver(timeoutSeconds: Int) {
-        // todo(tobias): this should not busy wait. use a thread or some kind of async (kotlin coroutines, hello?)
-        var waitedMilliseconds = 0
-
-        while (isPlaying) {
-            TimeUnit.MILLISECONDS.sleep(100)
-            waitedMilliseconds += 100
+        val playback = synchronized(lock) { _playback }
 
-            if (timeoutSeconds > 0 && (waitedMilliseconds / 1000) > timeoutSeconds) {
-                return
+        try {
+            if (timeoutSeconds > 0) {
+                playback.get(timeoutSeconds.toLong(), TimeUnit.SECONDS)
+            } else {
+                playback.get()
             }
+        } catch (e: TimeoutException) {
+            logger.debug { "playback did not finish within $timeoutSeconds seconds" }
         }
     }
 
     override val isPlaying: Boolean
-        get() {
-            var threadNotNull: Boolean
-            var threadIsAlive: Boolean
-            var threadNotInterrupted: Boolean
-
-            synchronized(lock) {
-                threadNotNull = _audioThread != null
-                threadIsAlive = threadNotNull && _audioThread!!.isAlive
-                threadNotInterrupted = threadNotNull && !_audioThread!!.isInterrupted
-            }
+        get() = synchronized(lock) { !_playback.isDone }
 
-            logger.trace { "isThreadNotNull: $threadNotNull" }
-            logger.trace { "threadIsAlive: $threadIsAlive" }
-            logger.trace { "threadNotInterrupted: $threadNotInterrupted" }
+    private fun startSilence(nanos: Long): CompletableFuture<Void?> {
+        _silenceEnd = System.nanoTime() + nanos
+        _silenceRemaining = 0L
+        _playback = CompletableFuture<Void?>().completeOnTimeout(null, nanos, TimeUnit.NANOSECONDS)
 
-            return threadNotNull && threadIsAlive && threadNotInterrupted
+        return _playback
+    }
+
+    private fun onLineEvent(clip: Clip, e: LineEvent) {
+        if (e.type != LineEvent.Type.STOP) {
+            return
         }
+
+        synchronized(lock) {
+            // stop events are delivered asynchronously, the one of a pause can arrive after the clip was resumed. only
+            // a stop past the frame the current playback started at ends it
+            if (clip === _clip && !paused && e.framePosition > _startFrame) {
+                logger.debug { "audio playback ended" }
+                _playback.complete(null)
+            }
+        }
+    }
 }
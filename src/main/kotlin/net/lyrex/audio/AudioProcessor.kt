@@ -1,10 +1,8 @@
 package net.lyrex.audio
 
-import com.google.api.gax.core.FixedCredentialsProvider
-import com.google.auth.oauth2.GoogleCredentials
 import com.google.cloud.texttospeech.v1.*
 
-import java.io.File
+import net.lyrex.cloud.CloudClients
 
 
 internal class AudioProcessor {
@@ -26,13 +24,8 @@ internal class AudioProcessor {
             inputText: String, audioEncoding: AudioEncoding, voice: Voice,
             speakingSpeed: SpeakingSpeed = SpeakingSpeed.Normal
         ): ByteArray {
-            // use local google cloud platform credentials
-            val credentials = GoogleCredentials.fromStream(File("gcp-credentials.dat").inputStream())
-            val ttsSettings = TextToSpeechSettings.newBuilder()
-                .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
-                .build()
-
-            TextToSpeechClient.create(ttsSettings).use { ttsClient ->
+            // the client is shared and long lived, it must not be closed here
+            CloudClients.textToSpeech.let { ttsClient ->
                 val input = SynthesisInput.newBuilder().setText(inputText).build()
 
                 val voiceParams = VoiceSelectionParams.newBuilder()
@@ -0,0 +1,99 @@
+package net.lyrex.audio
+
+import java.io.ByteArrayOutputStream
+import java.lang.ref.Reference
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import javax.sound.sampled.AudioFormat
+
+
+// Pcm clip compressed for the cold memory tier. The compression is lossless, a decompressed clip is the synthesized
+// clip sample for sample. Every 16 bit sample is stored as the difference to the one before it, split into a plane of
+// low and a plane of high bytes, and deflated. Speech changes slowly from sample to sample, so the high bytes are
+// mostly 0 or -1 and deflate well, and pauses shrink to almost nothing. Decoding is an inflate and a running sum.
+class CompressedClip private constructor(
+    val format: AudioFormat,
+    private val _data: ByteArray,
+    private val _samples: Int
+) {
+    companion object {
+        // only 16 bit little endian pcm can be compressed, null is returned for everything else
+        @JvmStatic
+        fun compress(clip: PcmClip): CompressedClip? {
+            val format = clip.format
+            if (format.encoding != AudioFormat.Encoding.PCM_SIGNED || format.sampleSizeInBits != 16 || format.isBigEndian) {
+                return null
+            }
+
+            val samples = clip.data().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+            val count = samples.remaining()
+            val planes = ByteArray(count * 2)
+            var previous = 0
+            for (i in 0 until count) {
+                val sample = samples.get(i).toInt()
+                val delta = sample - previous
+                planes[i] = delta.toByte()
+                planes[count + i] = (delta shr 8).toByte()
+                previous = sample
+            }
+            Reference.reachabilityFence(clip)
+
+            val deflater = Deflater(Deflater.BEST_SPEED, true)
+            try {
+                deflater.setInput(planes)
+                deflater.finish()
+
+                val output = ByteArrayOutputStream(planes.size / 2 + 64)
+                val buffer = ByteArray(8 * 1024)
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer))
+                }
+
+                return CompressedClip(format, output.toByteArray(), count)
+            } finally {
+                deflater.end()
+            }
+        }
+    }
+
+    val byteLength: Int
+        get() = _data.size
+
+    @JvmOverloads
+    fun decompress(offHeap: Boolean = PcmClip.offHeapByDefault): PcmClip {
+        val planes = ByteArray(_samples * 2)
+
+        val inflater = Inflater(true)
+        try {
+            inflater.setInput(_data)
+
+            var offset = 0
+            while (offset < planes.size && !inflater.finished()) {
+                val inflated = inflater.inflate(planes, offset, planes.size - offset)
+                if (inflated == 0 && inflater.needsInput()) {
+                    break
+                }
+                offset += inflated
+            }
+        } catch (e: DataFormatException) {
+            throw IllegalStateException("compressed clip is corrupt", e)
+        } finally {
+            inflater.end()
+        }
+
+        val pcm = ByteBuffer.allocate(_samples * 2).order(ByteOrder.LITTLE_ENDIAN)
+        var sample = 0
+        for (i in 0 until _samples) {
+            // the deltas wrap around like the 16 bit samples they were taken from
+            sample += (planes[i].toInt() and 0xff) or (planes[_samples + i].toInt() shl 8)
+            pcm.putShort(sample.toShort())
+        }
+        pcm.flip()
+
+        val clip = PcmClip.of(format, pcm)
+        return if (offHeap) clip.toOffHeap() else clip
+    }
+}
@@ -0,0 +1,299 @@
+package net.lyrex.audio
+
+import mu.KotlinLogging
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+private val logger = KotlinLogging.logger {}
+
+
+// Persistent, content addressed audio store.
+//
+// Audio is appended to a segment file as records of [hash high][hash low][length][payload]. A separate index file is
+// memory mapped and holds an open addressing hash table (linear probing) of 32 byte slots
+// [hash high][hash low][payload offset][payload length][state], so a lookup touches one or two slots and reads exactly
+// one payload from the segment file. The index is only a view on the segment file and is rebuilt from it whenever it is
+// missing, corrupt or lagging behind.
+class DiskAudioCache(directory: File) : Closeable {
+    companion object {
+        private const val INDEX_MAGIC = 0x44414958 // "DAIX"
+        private const val INDEX_VERSION = 1
+
+        // [magic][version][capacity][count][indexed segment length]
+        private const val HEADER_SIZE = 24
+        private const val SLOT_SIZE = 32
+        private const val RECORD_HEADER_SIZE = 20
+
+        private const val INITIAL_CAPACITY = 1024
+        private const val MAX_LOAD_FACTOR = 0.7
+
+        private const val SLOT_EMPTY = 0
+        private const val SLOT_USED = 1
+
+        @JvmStatic
+        val shared: DiskAudioCache? by lazy {
+            val directory = File(System.getProperty("diktat.audioCache.dir", "audio-cache"))
+
+            try {
+                val cache = DiskAudioCache(directory)
+                Runtime.getRuntime().addShutdownHook(Thread { cache.close() })
+                cache
+            } catch (e: IOException) {
+                logger.warn(e) { "could not open disk audio cache in \"$directory\", continuing without it" }
+                null
+            }
+        }
+    }
+
+    private val lock = Object()
+
+    private val segment: FileChannel
+    private val indexFile: RandomAccessFile
+    private var index: MappedByteBuffer
+    private var capacity: Int
+    private var count: Int
+
+    init {
+        if (!directory.isDirectory && !directory.mkdirs()) {
+            throw IOException("could not create audio cache directory \"$directory\"")
+        }
+
+        segment = FileChannel.open(
+            File(directory, "audio.seg").toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        )
+        indexFile = RandomAccessFile(File(directory, "audio.idx"), "rw")
+
+        val existingIndex = if (indexFile.length() >= HEADER_SIZE) {
+            indexFile.channel.map(FileChannel.MapMode.READ_WRITE, 0, indexFile.length())
+        } else {
+            null
+        }
+
+        if (existingIndex != null && isValidIndex(existingIndex)) {
+            index = existingIndex
+            capacity = index.getInt(8)
+            count = index.getInt(12)
+        } else {
+            logger.info { "audio cache index in \"$directory\" is missing or invalid, rebuilding it" }
+            capacity = INITIAL_CAPACITY
+            count = 0
+            index = mapIndex(capacity)
+            writeHeader(0L)
+        }
+
+        // index records that were appended to the segment file after the index was last written
+        val indexedLength = index.getLong(16)
+        if (indexedLength < segment.size()) {
+            scanSegment(indexedLength)
+        }
+
+        logger.info { "opened disk audio cache in \"$directory\" with $count entries" }
+    }
+
+    fun get(key: AudioCacheKey): ByteArray? {
+        val hash = key.contentHash()
+
+        val (offset, length) = synchronized(lock) {
+            val slot = findSlot(hash)
+            if (index.getInt(slot + 28) != SLOT_USED) {
+                return null
+            }
+
+            Pair(index.getLong(slot + 16), index.getInt(slot + 24))
+        }
+
+        // positional reads on a file channel are thread safe, so the payload is read without holding the lock
+        val payload = ByteBuffer.allocate(length)
+        var position = offset
+        while (payload.hasRemaining()) {
+            val read = segment.read(payload, position)
+            if (read < 0) {
+                logger.warn { "audio cache segment ended unexpectedly at $position" }
+                return null
+            }
+            position += read
+        }
+
+        return payload.array()
+    }
+
+    fun contains(key: AudioCacheKey): Boolean {
+        val hash = key.contentHash()
+        synchronized(lock) {
+            return index.getInt(findSlot(hash) + 28) == SLOT_USED
+        }
+    }
+
+    fun put(key: AudioCacheKey, audio: ByteArray) {
+        require(audio.isNotEmpty()) { "audio can not be empty" }
+
+        val hash = key.contentHash()
+
+        synchronized(lock) {
+            if (index.getInt(findSlot(hash) + 28) == SLOT_USED) {
+                return
+            }
+
+            // append the record first, the index only ever points at fully written payloads
+            val recordOffset = segment.size()
+            val record = ByteBuffer.allocate(RECORD_HEADER_SIZE + audio.size)
+            record.putLong(hash.high).putLong(hash.low).putInt(audio.size).put(audio).flip()
+
+            var position = recordOffset
+            while (record.hasRemaining()) {
+                position += segment.write(record, position)
+            }
+
+            insert(hash, recordOffset + RECORD_HEADER_SIZE, audio.size)
+            writeHeader(position)
+        }
+    }
+
+    val size: Int
+        get() = synchronized(lock) { count }
+
+    override fun close() {
+        synchronized(lock) {
+            if (!segment.isOpen) {
+                return
+            }
+
+            segment.force(true)
+            index.force()
+            segment.close()
+            indexFile.close()
+        }
+    }
+
+    private fun isValidIndex(buffer: MappedByteBuffer): Boolean {
+        if (buffer.getInt(0) != INDEX_MAGIC || buffer.getInt(4) != INDEX_VERSION) {
+            return false
+        }
+
+        val storedCapacity = buffer.getInt(8)
+        if (storedCapacity <= 0 || Integer.bitCount(storedCapacity) != 1) {
+            return false
+        }
+
+        // an index that claims more data than the segment holds can not be trusted
+        return buffer.capacity().toLong() >= HEADER_SIZE + storedCapacity.toLong() * SLOT_SIZE &&
+                buffer.getLong(16) <= segment.size()
+    }
+
+    private fun mapIndex(slots: Int): MappedByteBuffer {
+        val length = HEADER_SIZE + slots.toLong() * SLOT_SIZE
+
+        // the index file is only ever extended by mapping it, a file with a live mapping can not be truncated on windows
+        val buffer = indexFile.channel.map(FileChannel.MapMode.READ_WRITE, 0, length)
+        var position = 0
+        while (position < buffer.capacity()) {
+            buffer.putLong(position, 0L)
+            position += 8
+        }
+
+        return buffer
+    }
+
+    private fun writeHeader(indexedLength: Long) {
+        index.putInt(0, INDEX_MAGIC)
+        index.putInt(4, INDEX_VERSION)
+        index.putInt(8, capacity)
+        index.putInt(12, count)
+        index.putLong(16, indexedLength)
+    }
+
+    private fun findSlot(hash: ContentHash): Int {
+        var i = (hash.high xor hash.low).toInt() and (capacity - 1)
+        while (true) {
+            val slot = HEADER_SIZE + i * SLOT_SIZE
+            if (index.getInt(slot + 28) == SLOT_EMPTY ||
+                (index.getLong(slot) == hash.high && index.getLong(slot + 8) == hash.low)
+            ) {
+                return slot
+            }
+
+            i = (i + 1) and (capacity - 1)
+        }
+    }
+
+    private fun insert(hash: ContentHash, payloadOffset: Long, length: Int) {
+        if (count + 1 > capacity * MAX_LOAD_FACTOR) {
+            grow()
+        }
+
+        val slot = findSlot(hash)
+        if (index.getInt(slot + 28) == SLOT_USED) {
+            return
+        }
+
+        index.putLong(slot, hash.high)
+        index.putLong(slot + 8, hash.low)
+        index.putLong(slot + 16, payloadOffset)
+        index.putInt(slot + 24, length)
+        index.putInt(slot + 28, SLOT_USED)
+        count += 1
+    }
+
+    private fun grow() {
+        data class Entry(val hash: ContentHash, val offset: Long, val length: Int)
+
+        val entries = mutableListOf<Entry>()
+        for (i in 0 until capacity) {
+            val slot = HEADER_SIZE + i * SLOT_SIZE
+            if (index.getInt(slot + 28) == SLOT_USED) {
+                entries.add(
+                    Entry(
+                        ContentHash(index.getLong(slot), index.getLong(slot + 8)),
+                        index.getLong(slot + 16), index.getInt(slot + 24)
+                    )
+                )
+            }
+        }
+        val indexedLength = index.getLong(16)
+
+        logger.debug { "growing audio cache index from $capacity to ${capacity * 2} slots" }
+        capacity *= 2
+        count = 0
+        index = mapIndex(capacity)
+
+        entries.forEach { e -> insert(e.hash, e.offset, e.length) }
+        writeHeader(indexedLength)
+    }
+
+    private fun scanSegment(from: Long) {
+        val segmentLength = segment.size()
+        val header = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+
+        var position = from
+        while (position + RECORD_HEADER_SIZE <= segmentLength) {
+            header.clear()
+            segment.read(header, position)
+            header.flip()
+
+            val hash = ContentHash(header.long, header.long)
+            val length = header.int
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentLength) {
+                break
+            }
+
+            insert(hash, position + RECORD_HEADER_SIZE, length)
+            position += RECORD_HEADER_SIZE + length
+        }
+
+        // drop a partially written record at the end of the segment, it would shadow the next append otherwise
+        if (position < segmentLength) {
+            logger.warn { "truncating incomplete audio cache record at offset $position" }
+            segment.truncate(position)
+        }
+
+        writeHeader(position)
+    }
+}
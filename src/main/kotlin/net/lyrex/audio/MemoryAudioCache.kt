@@ -0,0 +1,119 @@
+package net.lyrex.audio
+
+import mu.KotlinLogging
+
+import java.util.concurrent.atomic.AtomicLong
+
+private val logger = KotlinLogging.logger {}
+
+
+// In-memory audio tier that is bounded by the total size of its entries, as told by `sizeOf`, instead of their count.
+// Entries are kept in access order and the least recently used ones are evicted until the resident bytes fit into the
+// budget again.
+//
+// The tier is split into independently locked stripes, each owning an equal share of the budget, so lookups for
+// unrelated keys do not contend on a single lock.
+class MemoryAudioCache<K, V>(val maxBytes: Long = defaultMaxBytes, private val sizeOf: (V) -> Int) {
+    companion object {
+        private const val DEFAULT_MAX_BYTES = 64L * 1024 * 1024
+        private const val MIN_STRIPE_BYTES = 4L * 1024 * 1024
+        private const val MAX_STRIPES = 16
+
+        @JvmStatic
+        val defaultMaxBytes: Long
+            get() = java.lang.Long.getLong("diktat.audioCache.maxMemoryBytes", DEFAULT_MAX_BYTES)
+    }
+
+    private class Stripe<K, V>(val maxBytes: Long) {
+        val entries = LinkedHashMap<K, V>(16, 0.75f, true)
+        var residentBytes = 0L
+    }
+
+    private val _stripes: List<Stripe<K, V>>
+
+    private val _hits = AtomicLong()
+    private val _misses = AtomicLong()
+    private val _evictions = AtomicLong()
+    private val _residentBytes = AtomicLong()
+
+    init {
+        require(maxBytes >= 0) { "maxBytes can not be negative" }
+
+        val stripeCount = (maxBytes / MIN_STRIPE_BYTES).coerceIn(1L, MAX_STRIPES.toLong()).toInt()
+        _stripes = List(stripeCount) { Stripe<K, V>(maxBytes / stripeCount) }
+    }
+
+    operator fun get(key: K): V? {
+        val audio = peek(key)
+        if (audio == null) {
+            _misses.incrementAndGet()
+        } else {
+            _hits.incrementAndGet()
+        }
+
+        return audio
+    }
+
+    // looks up an entry without counting it as a hit or miss
+    fun peek(key: K): V? {
+        val stripe = stripeFor(key)
+        synchronized(stripe) {
+            return stripe.entries[key]
+        }
+    }
+
+    operator fun set(key: K, audio: V) {
+        val size = sizeOf(audio)
+        val stripe = stripeFor(key)
+        synchronized(stripe) {
+            val previous = stripe.entries.remove(key)
+            if (previous != null) {
+                val previousSize = sizeOf(previous)
+                stripe.residentBytes -= previousSize
+                _residentBytes.addAndGet(-previousSize.toLong())
+            }
+
+            // a single clip bigger than the budget of its stripe would just flush everything else in it
+            if (size > stripe.maxBytes) {
+                logger.debug { "not caching audio of $size bytes, exceeds stripe budget of ${stripe.maxBytes} bytes" }
+                return
+            }
+
+            stripe.entries[key] = audio
+            stripe.residentBytes += size
+            _residentBytes.addAndGet(size.toLong())
+
+            evictIfNecessary(stripe)
+        }
+    }
+
+    val hits: Long
+        get() = _hits.get()
+
+    val misses: Long
+        get() = _misses.get()
+
+    val evictions: Long
+        get() = _evictions.get()
+
+    val residentBytes: Long
+        get() = _residentBytes.get()
+
+    private fun stripeFor(key: K): Stripe<K, V> {
+        val hash = key.hashCode()
+        val spread = hash xor (hash ushr 16)
+        return _stripes[Math.floorMod(spread, _stripes.size)]
+    }
+
+    private fun evictIfNecessary(stripe: Stripe<K, V>) {
+        val iterator = stripe.entries.values.iterator()
+        while (stripe.residentBytes > stripe.maxBytes && iterator.hasNext()) {
+            val evicted = sizeOf(iterator.next())
+            iterator.remove()
+
+            stripe.residentBytes -= evicted
+            _residentBytes.addAndGet(-evicted.toLong())
+            _evictions.incrementAndGet()
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.lyrex.audio
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+
+
+// Pool of direct buffers for off-heap pcm. Buffers come in power of two size classes, a released buffer is kept for
+// the next clip of its class as long as the pooled bytes stay below `maxPooledBytes`, otherwise it is left to the gc.
+class PcmBufferPool(private val maxPooledBytes: Long = defaultMaxPooledBytes) {
+    companion object {
+        private const val DEFAULT_MAX_POOLED_BYTES = 16L * 1024 * 1024
+        private const val MIN_CLASS_SHIFT = 14 // 16 KiB
+        private const val MAX_CLASS_SHIFT = 30
+
+        @JvmStatic
+        val defaultMaxPooledBytes: Long
+            get() = java.lang.Long.getLong("diktat.audioCache.pooledBytes", DEFAULT_MAX_POOLED_BYTES)
+
+        @JvmStatic
+        val shared: PcmBufferPool by lazy { PcmBufferPool() }
+    }
+
+    private val _classes = Array(MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1) { ConcurrentLinkedQueue<ByteBuffer>() }
+    private val _pooledBytes = AtomicLong()
+    private val _allocatedBytes = AtomicLong()
+
+    // the returned buffer is cleared and limited to `size` bytes
+    fun acquire(size: Int): ByteBuffer {
+        require(size >= 0) { "size can not be negative" }
+
+        val sizeClass = sizeClass(size)
+        val buffer = _classes[sizeClass].poll()?.also { b -> _pooledBytes.addAndGet(-b.capacity().toLong()) }
+            ?: ByteBuffer.allocateDirect(1 shl (sizeClass + MIN_CLASS_SHIFT)).also { b ->
+                _allocatedBytes.addAndGet(b.capacity().toLong())
+            }
+
+        buffer.clear().limit(size)
+        return buffer
+    }
+
+    fun release(buffer: ByteBuffer) {
+        if (!buffer.isDirect || Integer.bitCount(buffer.capacity()) != 1 || buffer.capacity() < 1 shl MIN_CLASS_SHIFT) {
+            return
+        }
+
+        if (_pooledBytes.addAndGet(buffer.capacity().toLong()) > maxPooledBytes) {
+            _pooledBytes.addAndGet(-buffer.capacity().toLong())
+            _allocatedBytes.addAndGet(-buffer.capacity().toLong())
+            return
+        }
+
+        _classes[sizeClass(buffer.capacity())].add(buffer)
+    }
+
+    val pooledBytes: Long
+        get() = _pooledBytes.get()
+
+    // off-heap bytes handed out or pooled, buffers dropped by the pool are not counted anymore
+    val allocatedBytes: Long
+        get() = _allocatedBytes.get()
+
+    private fun sizeClass(size: Int): Int {
+        val shift = if (size <= 1) 0 else 32 - Integer.numberOfLeadingZeros(size - 1)
+        val sizeClass = maxOf(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT
+        check(sizeClass < _classes.size) { "a clip of $size bytes is too large for the pool" }
+
+        return sizeClass
+    }
+}
@@ -0,0 +1,208 @@
+package net.lyrex.audio
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.lang.ref.Cleaner
+import java.lang.ref.Reference
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.time.Duration
+import javax.sound.sampled.AudioFileFormat
+import javax.sound.sampled.AudioFormat
+import javax.sound.sampled.AudioInputStream
+import javax.sound.sampled.AudioSystem
+
+import kotlin.math.min
+
+
+// Audio of a clip as parsed once from its wav container: the format and the raw pcm frames.
+//
+// The frames either stay in the array they were parsed from or are copied once into a pooled direct buffer outside of
+// the heap, so a large cache does not add to the gc pauses. Readers work on views of the frames and never copy them
+// themselves. A view is only valid as long as the clip is reachable, off-heap frames go back to the pool once the clip
+// is collected.
+class PcmClip private constructor(
+    val format: AudioFormat,
+    private val _data: ByteBuffer,
+    private val _owner: PcmClip? = null
+) {
+    companion object {
+        private val cleaner = Cleaner.create()
+
+        // format of the google tts linear16 output
+        private val DEFAULT_FORMAT = AudioFormat(24000f, 16, 1, true, false)
+
+        // KSDATAFORMAT_SUBTYPE_PCM as it is stored in the extensible header
+        private val PCM_SUBFORMAT = byteArrayOf(
+            0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10, 0x00, 0x80.toByte(), 0x00, 0x00, 0xaa.toByte(), 0x00, 0x38,
+            0x9b.toByte(), 0x71
+        )
+
+        @JvmStatic
+        val EMPTY = PcmClip(DEFAULT_FORMAT, ByteBuffer.allocate(0))
+
+        @JvmStatic
+        val offHeapByDefault: Boolean
+            get() = java.lang.Boolean.getBoolean("diktat.audioCache.offHeap")
+
+        @JvmStatic
+        @JvmOverloads
+        fun fromWav(wavBytes: ByteArray, offHeap: Boolean = offHeapByDefault): PcmClip {
+            if (wavBytes.isEmpty()) {
+                return EMPTY
+            }
+
+            // the data chunk of a plain pcm wav is used in place, anything else is decoded by java sound
+            val clip = parseWav(wavBytes) ?: AudioSystem.getAudioInputStream(ByteArrayInputStream(wavBytes)).use { ais ->
+                PcmClip(ais.format, ByteBuffer.wrap(ais.readAllBytes()))
+            }
+
+            return if (offHeap) clip.toOffHeap() else clip
+        }
+
+        // wraps the frames without copying them
+        @JvmStatic
+        fun of(format: AudioFormat, pcm: ByteBuffer): PcmClip = PcmClip(format, pcm.slice())
+
+        private fun parseWav(bytes: ByteArray): PcmClip? {
+            val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            if (bytes.size < 12 || chunkId(bytes, 0) != "RIFF" || chunkId(bytes, 8) != "WAVE") {
+                return null
+            }
+
+            var format: AudioFormat? = null
+            var position = 12
+            while (position + 8 <= bytes.size) {
+                val size = buffer.getInt(position + 4)
+                val body = position + 8
+                if (size < 0) {
+                    return null
+                }
+
+                when (chunkId(bytes, position)) {
+                    "fmt " -> {
+                        // 1 is pcm, 0xfffe the extensible header that java sound writes for more than two channels.
+                        // an extensible header only describes pcm if its subformat is the pcm guid
+                        val tag = buffer.getShort(body).toInt() and 0xffff
+                        if (size < 16 || body + size > bytes.size || tag != 1 && tag != 0xfffe) {
+                            return null
+                        }
+                        if (tag == 0xfffe && (size < 40 || !isPcmSubformat(bytes, body + 24))) {
+                            return null
+                        }
+
+                        val channels = buffer.getShort(body + 2).toInt()
+                        val sampleRate = buffer.getInt(body + 4).toFloat()
+                        val bits = buffer.getShort(body + 14).toInt()
+                        format = AudioFormat(sampleRate, bits, channels, bits > 8, false)
+                    }
+                    "data" -> {
+                        val f = format ?: return null
+                        val available = min(size, bytes.size - body)
+                        return PcmClip(f, ByteBuffer.wrap(bytes, body, available - available % f.frameSize).slice())
+                    }
+                }
+
+                position = body + size + (size and 1)
+            }
+
+            return null
+        }
+
+        private fun chunkId(bytes: ByteArray, offset: Int): String = String(bytes, offset, 4, Charsets.US_ASCII)
+
+        private fun isPcmSubformat(bytes: ByteArray, offset: Int): Boolean =
+            PCM_SUBFORMAT.indices.all { i -> bytes[offset + i] == PCM_SUBFORMAT[i] }
+    }
+
+    val byteLength: Int
+        get() = _data.remaining()
+
+    val frames: Long
+        get() = (byteLength / format.frameSize).toLong()
+
+    val duration: Duration
+        get() = Duration.ofNanos((frames * 1_000_000_000L / format.frameRate).toLong())
+
+    val isEmpty: Boolean
+        get() = byteLength == 0
+
+    val isOffHeap: Boolean
+        get() = _data.isDirect
+
+    // independent view on the frames from the first to the last one, the frames must not be modified through it
+    fun data(): ByteBuffer = _data.duplicate()
+
+    // the clip of the given frames, sharing the frames with this clip
+    fun slice(startFrame: Long, frameCount: Long): PcmClip {
+        val start = (startFrame * format.frameSize).toInt().coerceIn(0, byteLength)
+        val end = (start + frameCount * format.frameSize).toInt().coerceIn(start, byteLength)
+
+        val view = data()
+        view.position(start).limit(end)
+        return PcmClip(format, view.slice(), _owner ?: this)
+    }
+
+    // heap clips are read in place, off-heap frames are copied into the stream's buffer as they are read
+    fun asStream(): AudioInputStream {
+        val input = if (_data.hasArray()) {
+            ByteArrayInputStream(_data.array(), _data.arrayOffset() + _data.position(), byteLength)
+        } else {
+            ByteBufferInputStream(this)
+        }
+
+        return AudioInputStream(input, format, frames)
+    }
+
+    fun toWav(): ByteArray {
+        val output = ByteArrayOutputStream(byteLength + 44)
+        asStream().use { stream -> AudioSystem.write(stream, AudioFileFormat.Type.WAVE, output) }
+
+        return output.toByteArray()
+    }
+
+    // calls `block` with an array holding the frames, without a copy for heap clips
+    inline fun <T> withArray(block: (array: ByteArray, offset: Int, length: Int) -> T): T {
+        val view = data()
+        if (view.hasArray()) {
+            return block(view.array(), view.arrayOffset() + view.position(), view.remaining())
+        }
+
+        val copy = ByteArray(view.remaining())
+        view.get(copy)
+        return block(copy, 0, copy.size)
+    }
+
+    fun toOffHeap(pool: PcmBufferPool = PcmBufferPool.shared): PcmClip {
+        if (isOffHeap || isEmpty) {
+            return this
+        }
+
+        val buffer = pool.acquire(byteLength)
+        buffer.put(data()).flip()
+
+        val clip = PcmClip(format, buffer.slice())
+        cleaner.register(clip) { pool.release(buffer) }
+        return clip
+    }
+
+    private class ByteBufferInputStream(private val clip: PcmClip) : InputStream() {
+        private val view = clip.data()
+
+        override fun read(): Int = if (view.hasRemaining()) view.get().toInt() and 0xff else -1
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (!view.hasRemaining()) {
+                return -1
+            }
+
+            val length = min(len, view.remaining())
+            view.get(b, off, length)
+            Reference.reachabilityFence(clip)
+            return length
+        }
+
+        override fun available(): Int = view.remaining()
+    }
+}
@@ -0,0 +1,90 @@
+package net.lyrex.audio
+
+import com.google.cloud.texttospeech.v1beta1.AudioConfig
+import com.google.cloud.texttospeech.v1beta1.AudioEncoding
+import com.google.cloud.texttospeech.v1beta1.SynthesisInput
+import com.google.cloud.texttospeech.v1beta1.SynthesizeSpeechRequest
+import com.google.cloud.texttospeech.v1beta1.VoiceSelectionParams
+
+import mu.KotlinLogging
+
+import net.lyrex.cloud.CloudClients
+
+import kotlin.math.roundToLong
+
+private val logger = KotlinLogging.logger {}
+
+
+// Synthesizes all parts of a sentence with a single request. The parts are separated by ssml marks and the returned
+// timepoints are used to cut the LINEAR16 response into one clip per part, which also keeps the prosody of the parts
+// consistent with the full sentence. The part clips share the frames of the sentence clip.
+internal class SentenceSynthesizer {
+    internal companion object {
+        private const val MARK_PREFIX = "part-"
+
+        // returns one clip per part followed by the audio of the full sentence
+        @JvmStatic
+        fun sentenceToClips(parts: List<String>, voice: Voice, speakingSpeed: SpeakingSpeed): List<PcmClip> {
+            require(parts.isNotEmpty()) { "parts can not be empty" }
+
+            val ssml = StringBuilder("<speak>")
+            parts.forEachIndexed { index, part ->
+                if (index > 0) {
+                    ssml.append(" <mark name=\"$MARK_PREFIX$index\"/>")
+                }
+                ssml.append(escapeXml(part))
+            }
+            ssml.append("</speak>")
+
+            val request = SynthesizeSpeechRequest.newBuilder()
+                .setInput(SynthesisInput.newBuilder().setSsml(ssml.toString()))
+                .setVoice(
+                    VoiceSelectionParams.newBuilder()
+                        .setLanguageCode(voice.language.languageString)
+                        .setSsmlGenderValue(voice.gender.ssmlGender.number)
+                        .setName(voice.name)
+                )
+                .setAudioConfig(
+                    AudioConfig.newBuilder()
+                        .setAudioEncoding(AudioEncoding.LINEAR16)
+                        .setSpeakingRate(speakingSpeed.speed)
+                )
+                .addEnableTimePointing(SynthesizeSpeechRequest.TimepointType.SSML_MARK)
+                .build()
+
+            val response = CloudClients.textToSpeechBeta.synthesizeSpeech(request)
+            val sentenceAudio = response.audioContent.toByteArray()
+            check(sentenceAudio.isNotEmpty()) { "could not parse audio response" }
+
+            val markSeconds = response.timepointsList.associate { tp -> tp.markName to tp.timeSeconds }
+            val partStartSeconds = (1 until parts.size).map { index ->
+                markSeconds["$MARK_PREFIX$index"] ?: throw IllegalStateException("missing timepoint for part $index")
+            }
+
+            val sentenceClip = PcmClip.fromWav(sentenceAudio)
+            val totalFrames = sentenceClip.frames
+            val boundaries = listOf(0L) +
+                    partStartSeconds.map { s -> (s * sentenceClip.format.frameRate).roundToLong().coerceIn(0L, totalFrames) } +
+                    totalFrames
+
+            logger.debug { "split sentence audio of $totalFrames frames at ${boundaries.joinToString()}" }
+
+            val partClips = (0 until parts.size).map { index ->
+                val startFrame = boundaries[index]
+                val endFrame = boundaries[index + 1].coerceAtLeast(startFrame)
+                sentenceClip.slice(startFrame, endFrame - startFrame)
+            }
+
+            return partClips + sentenceClip
+        }
+
+        private fun escapeXml(text: String): String {
+            return text
+                .replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;")
+                .replace("'", "&apos;")
+        }
+    }
+}
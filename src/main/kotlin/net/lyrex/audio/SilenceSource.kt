@@ -0,0 +1,56 @@
+package net.lyrex.audio
+
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import javax.sound.sampled.AudioFormat
+
+import kotlin.math.min
+
+
+// Exact amounts of silence in any pcm format. All silence is handed out as slices of shared, never written buffers, so
+// producing a pause of any length does not allocate.
+object SilenceSource {
+    private const val BUFFER_SIZE = 64 * 1024
+
+    private val signedSilence = ByteArray(BUFFER_SIZE)
+
+    // unsigned silence is the midpoint of the sample range, 0x80 in the most significant byte of every sample. one
+    // buffer per sample size and byte order, keyed by the sample size in bytes, negative for big endian
+    private val unsignedSilence = ConcurrentHashMap<Int, ByteArray>()
+
+    @JvmStatic
+    fun frames(format: AudioFormat, duration: Duration): Long =
+        duration.toNanos() * format.frameRate.toLong() / 1_000_000_000L
+
+    // buffer of silence in the given format, it must not be modified
+    @JvmStatic
+    fun buffer(format: AudioFormat): ByteArray {
+        if (format.encoding != AudioFormat.Encoding.PCM_UNSIGNED) {
+            return signedSilence
+        }
+
+        val sampleBytes = maxOf(1, (format.sampleSizeInBits + 7) / 8)
+        val key = if (format.isBigEndian && sampleBytes > 1) -sampleBytes else sampleBytes
+        return unsignedSilence.computeIfAbsent(key) {
+            val mostSignificant = if (key < 0) 0 else sampleBytes - 1
+            ByteArray(BUFFER_SIZE) { i -> if (i % sampleBytes == mostSignificant) 0x80.toByte() else 0 }
+        }
+    }
+
+    // largest number of bytes of silence that can be taken from `buffer` at once, a multiple of the frame size
+    @JvmStatic
+    fun chunkSize(format: AudioFormat): Int = BUFFER_SIZE - BUFFER_SIZE % format.frameSize
+
+    // calls `write` with consecutive slices of the shared buffer that add up to exactly `duration` of silence
+    inline fun forEachChunk(format: AudioFormat, duration: Duration, write: (ByteArray, Int, Int) -> Unit) {
+        val silence = buffer(format)
+        val chunk = chunkSize(format).toLong()
+
+        var remaining = frames(format, duration) * format.frameSize
+        while (remaining > 0) {
+            val length = min(chunk, remaining).toInt()
+            write(silence, 0, length)
+            remaining -= length
+        }
+    }
+}
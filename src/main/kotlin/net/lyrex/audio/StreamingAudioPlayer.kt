@@ -0,0 +1,335 @@
+package net.lyrex.audio
+
+import mu.KotlinLogging
+
+import java.io.Closeable
+import java.nio.ByteBuffer
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.locks.LockSupport
+import javax.sound.sampled.AudioFormat
+import javax.sound.sampled.AudioSystem
+import javax.sound.sampled.SourceDataLine
+
+import kotlin.math.min
+
+private val logger = KotlinLogging.logger {}
+
+
+// Plays clips back to back on a single long-lived SourceDataLine. Clips are decoded to pcm on the calling thread and
+// queued, a single feeder thread writes them into the line in small chunks. There is no line to open per clip, so
+// consecutive parts play without a gap, and pauses are queued as frames of silence which makes them exact to the sample.
+class StreamingAudioPlayer(private val bufferMillis: Int = defaultBufferMillis) : IAudioPlayer, Closeable {
+    companion object {
+        private const val DEFAULT_BUFFER_MILLIS = 200
+        private const val CHUNK_MILLIS = 10
+
+        // format of the google tts linear16 output, used until the first clip determines the line format
+        private val FALLBACK_FORMAT = AudioFormat(24000f, 16, 1, true, false)
+
+        @JvmStatic
+        val isEnabled: Boolean
+            get() = java.lang.Boolean.getBoolean("diktat.player.streaming")
+
+        @JvmStatic
+        val defaultBufferMillis: Int
+            get() = Integer.getInteger("diktat.player.bufferMillis", DEFAULT_BUFFER_MILLIS)
+    }
+
+    // either a clip in `format` or `silenceFrames` frames of silence. the segment holds on to the clip, which keeps
+    // off-heap frames alive while they are fed
+    private class Segment(val format: AudioFormat, val clip: PcmClip?, val silenceFrames: Long) {
+        val pcm: ByteBuffer? = clip?.data()
+
+        // replaced on resume, the future of a paused segment is already completed
+        @Volatile
+        var completion = CompletableFuture<Void?>()
+
+        // frame of the line at which the segment has been played, set by the feeder once it is fully written
+        @Volatile
+        var endFrame = -1L
+
+        val byteLength: Long
+            get() = pcm?.remaining()?.toLong() ?: silenceFrames * format.frameSize
+    }
+
+    // segments waiting for the feeder, and all segments that are queued or fed but not yet played
+    private val _queue = ConcurrentLinkedQueue<Segment>()
+    private val _outstanding = ConcurrentLinkedQueue<Segment>()
+    private val _feeder: Thread
+
+    // a chunk is checked against the generation and written under this lock, so a stop can not be followed by a
+    // chunk of a segment it dropped
+    private val _lineLock = Object()
+
+    @Volatile
+    private var _format: AudioFormat? = null
+    @Volatile
+    private var _line: SourceDataLine? = null
+    @Volatile
+    private var _last: CompletableFuture<Void?> = CompletableFuture.completedFuture(null)
+    @Volatile
+    private var _generation = 0L
+    @Volatile
+    private var _paused = false
+    @Volatile
+    private var _closed = false
+
+    init {
+        _feeder = Thread({ feed() }, "audio-feeder")
+        _feeder.isDaemon = true
+        _feeder.start()
+    }
+
+    override val isPlaying: Boolean
+        get() = !_last.isDone
+
+    override val queuesSegments: Boolean
+        get() = true
+
+    override fun play(clip: PcmClip): CompletableFuture<Void?> {
+        if (clip.isEmpty) {
+            return CompletableFuture.completedFuture(null)
+        }
+
+        // the first clip determines the line format, later clips are converted to it where possible
+        val target = _format ?: clip.format.also { f -> _format = f }
+        val source = when {
+            clip.format.matches(target)                            -> clip
+            AudioSystem.isConversionSupported(target, clip.format) -> {
+                AudioSystem.getAudioInputStream(target, clip.asStream()).use { converted ->
+                    PcmClip.of(target, ByteBuffer.wrap(converted.readAllBytes()))
+                }
+            }
+            else                                                   -> {
+                logger.info { "can not convert ${clip.format} to $target, the line is reopened" }
+                _format = clip.format
+                clip
+            }
+        }
+
+        return enqueue(Segment(source.format, source, 0L))
+    }
+
+    override fun playSilence(duration: Duration): CompletableFuture<Void?> {
+        val format = _format ?: FALLBACK_FORMAT
+        val frames = SilenceSource.frames(format, duration)
+        if (frames <= 0) {
+            return CompletableFuture.completedFuture(null)
+        }
+
+        return enqueue(Segment(format, null, frames))
+    }
+
+    // the line and the feeder continue where they stopped, nothing is decoded again
+    override fun resume(): CompletableFuture<Void?> {
+        if (!_paused) {
+            return CompletableFuture.completedFuture(null)
+        }
+
+        var last: CompletableFuture<Void?> = CompletableFuture.completedFuture(null)
+        _outstanding.forEach { segment ->
+            last = CompletableFuture()
+            segment.completion = last
+        }
+        _last = last
+
+        _paused = false
+        _line?.start()
+        LockSupport.unpark(_feeder)
+
+        return last
+    }
+
+    // the line stops and keeps the frames it holds, everything waiting for the playback is released
+    override fun pause() {
+        _paused = true
+        _line?.stop()
+
+        _outstanding.forEach { segment -> segment.completion.complete(null) }
+    }
+
+    override fun stop() {
+        synchronized(_lineLock) {
+            _queue.clear()
+            _generation += 1
+            _paused = false
+
+            _line?.let { line ->
+                line.flush()
+                line.start()
+            }
+        }
+
+        while (true) {
+            val segment = _outstanding.poll() ?: break
+            segment.completion.complete(null)
+        }
+        LockSupport.unpark(_feeder)
+    }
+
+    override fun waitUntilPlayingIsOver(timeoutSeconds: Int) {
+        try {
+            if (timeoutSeconds > 0) {
+                _last.get(timeoutSeconds.toLong(), TimeUnit.SECONDS)
+            } else {
+                _last.get()
+            }
+        } catch (e: TimeoutException) {
+            logger.debug { "playback did not finish within $timeoutSeconds seconds" }
+        }
+    }
+
+    override fun close() {
+        _closed = true
+        stop()
+        _feeder.join()
+
+        _line?.close()
+        _line = null
+    }
+
+    private fun enqueue(segment: Segment): CompletableFuture<Void?> {
+        val completion = segment.completion
+        _outstanding.add(segment)
+        _queue.add(segment)
+        _last = completion
+
+        // a segment queued while paused is released like the ones the pause found, resume() waits for it again
+        if (_paused) {
+            completion.complete(null)
+        }
+
+        LockSupport.unpark(_feeder)
+        return completion
+    }
+
+    private fun feed() {
+        var chunk = ByteArray(0)
+        var segment: Segment? = null
+        var offset = 0L
+        var framesWritten = 0L
+        var generation = _generation
+
+        while (!_closed) {
+            if (generation != _generation) {
+                // stopped, whatever was fed of the current segment is already flushed
+                generation = _generation
+                segment = null
+            }
+
+            if (_paused) {
+                LockSupport.park(this)
+                continue
+            }
+
+            if (segment == null) {
+                segment = _queue.poll()
+                offset = 0L
+
+                if (segment == null) {
+                    // nothing left to feed. the line plays out what it holds while the feeder polls for the next
+                    // segment, draining would block a segment queued in the meantime until the line ran dry
+                    val line = _line
+                    if (line == null || _outstanding.isEmpty()) {
+                        LockSupport.park(this)
+                    } else {
+                        completePlayed(framesPlayed(line, framesWritten))
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(CHUNK_MILLIS.toLong()))
+                    }
+                    continue
+                }
+            }
+
+            val format = segment.format
+            val line = _line?.takeIf { line -> line.format.matches(format) } ?: run {
+                // the previous clips have to finish before the line is reopened with the new format. drain blocks
+                // while the line is paused, until it is resumed or a stop flushes it
+                _line?.let { line ->
+                    line.drain()
+                    completePlayed(framesWritten)
+                    line.close()
+                }
+
+                framesWritten = 0L
+                openLine(format)
+            }
+
+            // no more than fits into the line is written, so a write never blocks and a pause or stop is seen
+            // within a chunk
+            val frameSize = format.frameSize
+            val free = line.available() - line.available() % frameSize
+            val length = min(min(chunkBytes(format).toLong(), segment.byteLength - offset), free.toLong()).toInt()
+            if (length <= 0) {
+                completePlayed(framesPlayed(line, framesWritten))
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(CHUNK_MILLIS.toLong()))
+                continue
+            }
+
+            val pcm = segment.pcm
+            if (pcm != null && !pcm.hasArray()) {
+                // off-heap frames pass through a small reused array on their way into the line
+                if (chunk.size < length) {
+                    chunk = ByteArray(length)
+                }
+                pcm.get(pcm.position() + offset.toInt(), chunk, 0, length)
+            }
+
+            val written = synchronized(_lineLock) {
+                when {
+                    // stopped since the segment was taken, it is dropped at the top of the loop
+                    generation != _generation -> 0
+                    pcm == null               -> {
+                        line.write(SilenceSource.buffer(format), 0, min(length, SilenceSource.chunkSize(format)))
+                    }
+                    pcm.hasArray()            -> {
+                        line.write(pcm.array(), pcm.arrayOffset() + pcm.position() + offset.toInt(), length)
+                    }
+                    else                      -> line.write(chunk, 0, length)
+                }
+            }
+
+            offset += written
+            framesWritten += written / frameSize
+            if (offset >= segment.byteLength) {
+                segment.endFrame = framesWritten
+                segment = null
+            }
+
+            completePlayed(framesPlayed(line, framesWritten))
+        }
+    }
+
+    // frames written minus the frames still waiting in the line buffer
+    private fun framesPlayed(line: SourceDataLine, framesWritten: Long): Long =
+        framesWritten - (line.bufferSize - line.available()) / line.format.frameSize
+
+    private fun completePlayed(framesPlayed: Long) {
+        while (true) {
+            val segment = _outstanding.peek() ?: return
+            if (segment.endFrame < 0 || segment.endFrame > framesPlayed) {
+                return
+            }
+
+            _outstanding.remove(segment)
+            segment.completion.complete(null)
+        }
+    }
+
+    private fun openLine(format: AudioFormat): SourceDataLine {
+        val line = AudioSystem.getSourceDataLine(format)
+        val bufferBytes = (format.frameRate * bufferMillis / 1000).toInt() * format.frameSize
+        line.open(format, bufferBytes)
+        line.start()
+
+        logger.debug { "opened audio line for $format with a buffer of ${line.bufferSize} bytes" }
+        _line = line
+        return line
+    }
+
+    private fun chunkBytes(format: AudioFormat): Int =
+        maxOf(1, (format.frameRate * CHUNK_MILLIS / 1000).toInt()) * format.frameSize
+}
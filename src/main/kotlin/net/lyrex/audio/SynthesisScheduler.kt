@@ -0,0 +1,110 @@
+package net.lyrex.audio
+
+import mu.KotlinLogging
+
+import java.io.Closeable
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import kotlin.math.min
+
+private val logger = KotlinLogging.logger {}
+
+
+// Token bucket that allows bursts of up to `burst` requests and refills at `permitsPerSecond`.
+class TokenBucket(private val permitsPerSecond: Double, private val burst: Int = 1) {
+    private val lock = Object()
+    private var tokens = burst.toDouble()
+    private var lastRefill = System.nanoTime()
+
+    init {
+        require(permitsPerSecond > 0) { "permitsPerSecond must be positive" }
+        require(burst > 0) { "burst must be positive" }
+    }
+
+    fun acquire() {
+        while (true) {
+            val waitNanos = synchronized(lock) {
+                val now = System.nanoTime()
+                tokens = min(burst.toDouble(), tokens + (now - lastRefill) / 1e9 * permitsPerSecond)
+                lastRefill = now
+
+                if (tokens >= 1.0) {
+                    tokens -= 1.0
+                    return
+                }
+
+                ((1.0 - tokens) / permitsPerSecond * 1e9).toLong()
+            }
+
+            TimeUnit.NANOSECONDS.sleep(waitNanos)
+        }
+    }
+}
+
+// Executor for batch synthesis. At most `maxInFlight` tasks run at the same time and every request a task sends takes a
+// token from a shared bucket first, which keeps bulk jobs such as the wav export below the api quota. Tasks that are
+// served from a cache tier do not send a request and run unthrottled.
+class SynthesisScheduler(
+    maxInFlight: Int = defaultMaxInFlight,
+    requestsPerSecond: Double = defaultRequestsPerSecond
+) : Executor, Closeable {
+    companion object {
+        private const val DEFAULT_MAX_IN_FLIGHT = 8
+        private const val DEFAULT_REQUESTS_PER_SECOND = 10.0
+
+        private val threadCounter = AtomicInteger()
+
+        // scheduler whose task the current thread is running
+        private val currentScheduler = ThreadLocal<SynthesisScheduler>()
+
+        @JvmStatic
+        val defaultMaxInFlight: Int
+            get() = Integer.getInteger("diktat.export.maxInFlight", DEFAULT_MAX_IN_FLIGHT)
+
+        @JvmStatic
+        val defaultRequestsPerSecond: Double
+            get() = System.getProperty("diktat.export.requestsPerSecond")?.toDoubleOrNull()
+                ?: DEFAULT_REQUESTS_PER_SECOND
+
+        // called right before a synthesis request goes out. requests of a task of a scheduler wait for a token of it,
+        // requests made anywhere else, such as those of the live playback, are not limited
+        @JvmStatic
+        fun acquireRequestPermit() {
+            currentScheduler.get()?._rateLimiter?.acquire()
+        }
+    }
+
+    private val _rateLimiter = TokenBucket(requestsPerSecond, maxInFlight)
+    private val _executor: ExecutorService
+
+    init {
+        require(maxInFlight > 0) { "maxInFlight must be positive" }
+
+        _executor = Executors.newFixedThreadPool(maxInFlight) { r ->
+            val thread = Thread(r, "synthesis-scheduler-${threadCounter.incrementAndGet()}")
+            thread.isDaemon = true
+            thread
+        }
+
+        logger.debug { "created synthesis scheduler with $maxInFlight requests in flight, $requestsPerSecond/s" }
+    }
+
+    override fun execute(command: Runnable) {
+        _executor.execute {
+            currentScheduler.set(this)
+            try {
+                command.run()
+            } finally {
+                currentScheduler.remove()
+            }
+        }
+    }
+
+    override fun close() {
+        _executor.shutdown()
+    }
+}
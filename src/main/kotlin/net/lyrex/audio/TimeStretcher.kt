@@ -0,0 +1,140 @@
+package net.lyrex.audio
+
+import mu.KotlinLogging
+
+import java.lang.ref.Reference
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import javax.sound.sampled.AudioFormat
+
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.max
+import kotlin.math.roundToInt
+
+private val logger = KotlinLogging.logger {}
+
+
+// Changes the tempo of 16 bit pcm speech without changing its pitch (wsola, waveform similarity overlap-add).
+//
+// The output is assembled from hann windowed input windows placed half a window apart. For every window the input
+// position is searched around the ideal position for the piece that continues the previously copied window best, so
+// the overlapping halves add up without phase cancellation.
+object TimeStretcher {
+    private const val WINDOW_MILLIS = 30
+    private const val TOLERANCE_MILLIS = 10
+    private const val DEFAULT_CACHE_BYTES = 32L * 1024 * 1024
+
+    // synthesize at normal speed once and render the other speeds locally
+    @JvmStatic
+    val isEnabled: Boolean
+        get() = java.lang.Boolean.getBoolean("diktat.audio.timeStretch")
+
+    // memory budget for clips that were rendered at the playback speed
+    @JvmStatic
+    val cacheBytes: Long
+        get() = java.lang.Long.getLong("diktat.audio.timeStretchCacheBytes", DEFAULT_CACHE_BYTES)
+
+    // returns the clip played `speed` times as fast, clips that are not 16 bit little endian pcm are returned unchanged
+    @JvmStatic
+    fun stretch(clip: PcmClip, speed: Double): PcmClip {
+        val format = clip.format
+        if (clip.isEmpty || speed == 1.0) {
+            return clip
+        }
+
+        if (format.encoding != AudioFormat.Encoding.PCM_SIGNED || format.sampleSizeInBits != 16 || format.isBigEndian) {
+            logger.warn { "can not time stretch audio in $format" }
+            return clip
+        }
+
+        // clips shorter than a couple of windows have nothing to stretch
+        val window = (format.frameRate * WINDOW_MILLIS / 1000).toInt() and 1.inv()
+        if (clip.frames < window * 2) {
+            return clip
+        }
+
+        val samples = ShortArray(clip.byteLength / 2)
+        clip.data().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples)
+        Reference.reachabilityFence(clip)
+
+        return PcmClip.of(format, ByteBuffer.wrap(stretch(samples, format, window, speed)))
+    }
+
+    private fun stretch(samples: ShortArray, format: AudioFormat, window: Int, speed: Double): ByteArray {
+        require(speed > 0) { "speed must be positive" }
+
+        val channels = format.channels
+        val frames = samples.size / channels
+        val tolerance = (format.frameRate * TOLERANCE_MILLIS / 1000).toInt()
+
+        val synthesisHop = window / 2
+        val analysisHop = synthesisHop * speed
+        val outputFrames = (frames / speed).toInt()
+        val output = FloatArray((outputFrames + window) * channels)
+        val hann = FloatArray(window) { i -> (0.5 - 0.5 * cos(2.0 * PI * i / window)).toFloat() }
+
+        var previous = 0
+        var k = 0
+        while (k * synthesisHop < outputFrames) {
+            val outputPosition = k * synthesisHop
+            val position = if (k == 0) {
+                0
+            } else {
+                bestPosition(samples, channels, frames, previous + synthesisHop, (k * analysisHop).roundToInt(),
+                    tolerance, synthesisHop)
+            }
+
+            for (i in 0 until window) {
+                val source = position + i
+                if (source >= frames) {
+                    break
+                }
+
+                // the first window has no predecessor to overlap with, so it must not fade in
+                val weight = if (k == 0 && i < synthesisHop) 1.0f else hann[i]
+                for (c in 0 until channels) {
+                    output[(outputPosition + i) * channels + c] += samples[source * channels + c] * weight
+                }
+            }
+
+            previous = position
+            k += 1
+        }
+
+        val result = ByteBuffer.allocate(outputFrames * format.frameSize).order(ByteOrder.LITTLE_ENDIAN)
+        for (i in 0 until outputFrames * channels) {
+            result.putShort(output[i].roundToInt().coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort())
+        }
+
+        return result.array()
+    }
+
+    // input position within `ideal` +- `tolerance` whose start resembles the natural continuation of the previous
+    // window most, compared on the first channel
+    private fun bestPosition(
+        samples: ShortArray, channels: Int, frames: Int,
+        natural: Int, ideal: Int, tolerance: Int, length: Int
+    ): Int {
+        val last = frames - length
+        if (last <= 0 || natural > last) {
+            return ideal.coerceIn(0, max(0, last))
+        }
+
+        var best = ideal.coerceIn(0, last)
+        var bestScore = Double.NEGATIVE_INFINITY
+        for (candidate in max(0, ideal - tolerance)..minOf(last, ideal + tolerance)) {
+            var score = 0.0
+            for (i in 0 until length) {
+                score += samples[(natural + i) * channels] * samples[(candidate + i) * channels].toDouble()
+            }
+
+            if (score > bestScore) {
+                bestScore = score
+                best = candidate
+            }
+        }
+
+        return best
+    }
+}
@@ -1,7 +1,8 @@
 package net.lyrex.audio
 
 import com.google.cloud.texttospeech.v1.SsmlVoiceGender
-import com.google.cloud.texttospeech.v1.TextToSpeechClient
+
+import net.lyrex.cloud.CloudClients
 
 import java.util.EnumMap
 
@@ -18,7 +19,7 @@ class Voice(val language: Language, val gender: Gender, val name: String) {
                     return _cache[lang]!!
                 }
 
-                TextToSpeechClient.create().use { ttsClient ->
+                CloudClients.textToSpeech.let { ttsClient ->
                     val response = ttsClient.listVoices(lang.languageString)
                     if (response.voicesCount == 0) {
                         return listOf()
@@ -0,0 +1,177 @@
+package net.lyrex.audio
+
+import mu.KotlinLogging
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.lang.ref.Reference
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.time.Duration
+import javax.sound.sampled.AudioFormat
+import javax.sound.sampled.AudioInputStream
+import javax.sound.sampled.AudioSystem
+
+private val logger = KotlinLogging.logger {}
+
+
+// Streams pcm audio into a wav file. A placeholder header is written first and the riff and data sizes are patched in
+// once the writer is closed, so only a single clip has to be held in memory at any time. Pcm clips in the format of the
+// file go from their buffer into the file channel without being copied on the heap.
+class WavFileWriter(file: File) : Closeable {
+    companion object {
+        private const val HEADER_SIZE = 44
+        private const val COPY_BUFFER_SIZE = 64 * 1024
+    }
+
+    private val channel: FileChannel = FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+    )
+    private val buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE)
+
+    private var _format: AudioFormat? = null
+    private var _dataBytes = 0L
+    private var _pendingSilence = Duration.ZERO
+
+    init {
+        channel.write(ByteBuffer.allocate(HEADER_SIZE))
+    }
+
+    val format: AudioFormat?
+        get() = _format
+
+    val framesWritten: Long
+        get() = _format?.let { f -> _dataBytes / f.frameSize } ?: 0L
+
+    // clips in the format of the file are written straight from their frames
+    @Throws(IOException::class)
+    fun write(clip: PcmClip) {
+        if (clip.isEmpty) {
+            return
+        }
+
+        if (!targetFormat(clip.format).matches(clip.format)) {
+            clip.asStream().use { stream -> write(stream) }
+            return
+        }
+
+        val frames = clip.data()
+        while (frames.hasRemaining()) {
+            _dataBytes += channel.write(frames)
+        }
+        Reference.reachabilityFence(clip)
+    }
+
+    @Throws(IOException::class)
+    fun write(stream: AudioInputStream) {
+        val target = targetFormat(stream.format)
+
+        val source = when {
+            stream.format.matches(target)                            -> stream
+            AudioSystem.isConversionSupported(target, stream.format) -> AudioSystem.getAudioInputStream(target, stream)
+            else                                                     -> {
+                logger.warn { "can not convert ${stream.format} to $target, appending raw pcm" }
+                stream
+            }
+        }
+
+        while (true) {
+            buffer.clear()
+            val read = source.read(buffer.array(), 0, buffer.capacity())
+            if (read < 0) {
+                break
+            }
+
+            buffer.limit(read)
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+            _dataBytes += read
+        }
+    }
+
+    @Throws(IOException::class)
+    fun writeSilence(duration: Duration) {
+        val format = _format
+        if (format == null) {
+            _pendingSilence += duration
+            return
+        }
+
+        SilenceSource.forEachChunk(format, duration) { silence, offset, length ->
+            val chunk = ByteBuffer.wrap(silence, offset, length)
+            while (chunk.hasRemaining()) {
+                channel.write(chunk)
+            }
+            _dataBytes += length
+        }
+    }
+
+    override fun close() {
+        if (!channel.isOpen) {
+            return
+        }
+
+        try {
+            _format?.let { f ->
+                val header = header(f)
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position().toLong())
+                }
+            }
+        } finally {
+            channel.close()
+        }
+    }
+
+    // the first clip determines the format of the whole file
+    private fun targetFormat(format: AudioFormat): AudioFormat {
+        val target = _format ?: format.also { f ->
+            if (f.encoding != AudioFormat.Encoding.PCM_SIGNED && f.encoding != AudioFormat.Encoding.PCM_UNSIGNED ||
+                f.sampleSizeInBits > 8 && f.isBigEndian
+            ) {
+                throw IOException("unsupported audio format for wav export: $f")
+            }
+
+            _format = f
+        }
+
+        // silence that was requested before the format was known
+        if (_pendingSilence > Duration.ZERO) {
+            val silence = _pendingSilence
+            _pendingSilence = Duration.ZERO
+            writeSilence(silence)
+        }
+
+        return target
+    }
+
+    private fun header(format: AudioFormat): ByteBuffer {
+        val bytesPerSample = (format.sampleSizeInBits + 7) / 8
+        val blockAlign = format.channels * bytesPerSample
+
+        val header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        header.put("RIFF".toByteArray(Charsets.US_ASCII))
+        header.putInt((HEADER_SIZE - 8 + _dataBytes).toInt())
+        header.put("WAVE".toByteArray(Charsets.US_ASCII))
+
+        header.put("fmt ".toByteArray(Charsets.US_ASCII))
+        header.putInt(16)
+        header.putShort(1.toShort()) // pcm
+        header.putShort(format.channels.toShort())
+        header.putInt(format.sampleRate.toInt())
+        header.putInt(format.sampleRate.toInt() * blockAlign)
+        header.putShort(blockAlign.toShort())
+        header.putShort(format.sampleSizeInBits.toShort())
+
+        header.put("data".toByteArray(Charsets.US_ASCII))
+        header.putInt(_dataBytes.toInt())
+        header.flip()
+
+        return header
+    }
+}
@@ -0,0 +1,101 @@
+package net.lyrex.cloud
+
+import com.google.api.gax.core.CredentialsProvider
+import com.google.api.gax.core.FixedCredentialsProvider
+import com.google.auth.oauth2.GoogleCredentials
+import com.google.cloud.texttospeech.v1.TextToSpeechClient
+import com.google.cloud.texttospeech.v1.TextToSpeechSettings
+import com.google.cloud.texttospeech.v1beta1.TextToSpeechClient as BetaTextToSpeechClient
+import com.google.cloud.texttospeech.v1beta1.TextToSpeechSettings as BetaTextToSpeechSettings
+import com.google.cloud.vision.v1.ImageAnnotatorClient
+import com.google.cloud.vision.v1.ImageAnnotatorSettings
+
+import mu.KotlinLogging
+
+import net.lyrex.configuration_file_name
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+private val logger = KotlinLogging.logger {}
+
+
+// Process wide Google Cloud clients. Each client owns a gRPC channel and is thread safe, so they are created once on
+// first use and shared by everything that talks to the API instead of paying for a new channel per request.
+object CloudClients {
+    private const val SHUTDOWN_TIMEOUT_SECONDS = 5L
+
+    private val credentialsProvider: CredentialsProvider? by lazy {
+        // without a local credentials file the clients fall back to the application default credentials
+        val credentialsFile = File(configuration_file_name)
+        if (!credentialsFile.exists()) {
+            logger.warn { "could not find \"$credentialsFile\", using application default credentials" }
+            return@lazy null
+        }
+
+        val credentials = credentialsFile.inputStream().use { stream -> GoogleCredentials.fromStream(stream) }
+        FixedCredentialsProvider.create(credentials)
+    }
+
+    private val _textToSpeech = lazy {
+        logger.info { "creating text-to-speech client" }
+
+        val settings = TextToSpeechSettings.newBuilder()
+        credentialsProvider?.let { settings.setCredentialsProvider(it) }
+        TextToSpeechClient.create(settings.build())
+    }
+
+    // timepoints for ssml marks are only available in the beta api
+    private val _textToSpeechBeta = lazy {
+        logger.info { "creating text-to-speech beta client" }
+
+        val settings = BetaTextToSpeechSettings.newBuilder()
+        credentialsProvider?.let { settings.setCredentialsProvider(it) }
+        BetaTextToSpeechClient.create(settings.build())
+    }
+
+    private val _imageAnnotator = lazy {
+        logger.info { "creating image annotator client" }
+
+        val settings = ImageAnnotatorSettings.newBuilder()
+        credentialsProvider?.let { settings.setCredentialsProvider(it) }
+        ImageAnnotatorClient.create(settings.build())
+    }
+
+    init {
+        Runtime.getRuntime().addShutdownHook(Thread { shutdown() })
+    }
+
+    @JvmStatic
+    val textToSpeech: TextToSpeechClient
+        get() = _textToSpeech.value
+
+    @JvmStatic
+    val textToSpeechBeta: BetaTextToSpeechClient
+        get() = _textToSpeechBeta.value
+
+    @JvmStatic
+    val imageAnnotator: ImageAnnotatorClient
+        get() = _imageAnnotator.value
+
+    @JvmStatic
+    fun shutdown() {
+        if (_textToSpeech.isInitialized()) {
+            logger.info { "shutting down text-to-speech client" }
+            _textToSpeech.value.shutdown()
+            _textToSpeech.value.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        }
+
+        if (_textToSpeechBeta.isInitialized()) {
+            logger.info { "shutting down text-to-speech beta client" }
+            _textToSpeechBeta.value.shutdown()
+            _textToSpeechBeta.value.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        }
+
+        if (_imageAnnotator.isInitialized()) {
+            logger.info { "shutting down image annotator client" }
+            _imageAnnotator.value.shutdown()
+            _imageAnnotator.value.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        }
+    }
+}
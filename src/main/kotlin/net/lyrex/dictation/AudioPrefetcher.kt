@@ -0,0 +1,120 @@
+package net.lyrex.dictation
+
+import mu.KotlinLogging
+
+import net.lyrex.audio.AudioCache
+import net.lyrex.audio.IAudioCache
+import net.lyrex.audio.PcmClip
+import net.lyrex.audio.SpeakingSpeed
+import net.lyrex.audio.Voice
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+private val logger = KotlinLogging.logger {}
+
+
+data class PrefetchStats(val requests: Int, val waits: Int, val waitedMillis: Long)
+
+// Keeps the audio for the next few texts of a playback sequence in flight while the current text is played back, so
+// cache misses are synthesized in the background instead of showing up as silence between two parts. A null in the
+// sequence means the next text is not known yet, the prefetcher stops there and asks again on the next lookup. `prepare` is
+// run on every fetched clip on the synthesis executor before its future completes.
+class AudioPrefetcher(
+    private val audioCache: IAudioCache,
+    private val voice: Voice,
+    private val speakingSpeed: SpeakingSpeed,
+    upcomingTexts: Sequence<String?>,
+    private val prepare: ((String, PcmClip) -> Unit)? = null,
+    private val lookahead: Int = defaultLookahead
+) {
+    companion object {
+        private const val DEFAULT_LOOKAHEAD = 4
+
+        @JvmStatic
+        val defaultLookahead: Int
+            get() = Integer.getInteger("diktat.prefetch.depth", DEFAULT_LOOKAHEAD)
+    }
+
+    private val _upcoming: Iterator<String?>
+    private val _window = ArrayDeque<Pair<String, CompletableFuture<PcmClip>>>()
+    private var _current: Pair<String, CompletableFuture<PcmClip>>? = null
+
+    private var _requests = 0
+    private var _waits = 0
+    private var _waitedMillis = 0L
+
+    init {
+        require(lookahead >= 0) { "lookahead can not be negative" }
+
+        // repetitions of a part are requested back to back, they only need to be fetched once
+        var previous: String? = null
+        _upcoming = upcomingTexts.filter { text ->
+            if (text == null) {
+                return@filter true
+            }
+
+            val isRepetition = text == previous
+            previous = text
+            !isRepetition
+        }.iterator()
+
+        fill()
+    }
+
+    val stats: PrefetchStats
+        get() = PrefetchStats(_requests, _waits, _waitedMillis)
+
+    fun getAudio(text: String, voice: Voice, speakingSpeed: SpeakingSpeed): PcmClip {
+        _requests += 1
+
+        // options changed during playback, the prefetched audio is of no use anymore
+        if (voice != this.voice || speakingSpeed != this.speakingSpeed) {
+            return await(audioCache.getAudioForTextAsync(text, voice, speakingSpeed))
+        }
+
+        if (_current?.first != text) {
+            val windowIndex = _window.indexOfFirst { (upcomingText, _) -> upcomingText == text }
+            _current = if (windowIndex >= 0) {
+                // playback skipped ahead, the skipped texts are still cached once they complete
+                repeat(windowIndex) { _window.removeFirst() }
+                _window.removeFirst()
+            } else {
+                Pair(text, fetch(text))
+            }
+        }
+
+        fill()
+        return await(_current!!.second)
+    }
+
+    private fun fill() {
+        while (_window.size < lookahead && _upcoming.hasNext()) {
+            val text = _upcoming.next() ?: break
+            _window.addLast(Pair(text, fetch(text)))
+        }
+    }
+
+    private fun fetch(text: String): CompletableFuture<PcmClip> {
+        val future = audioCache.getAudioForTextAsync(text, voice, speakingSpeed)
+        val prepare = prepare ?: return future
+
+        return future.thenApplyAsync({ clip -> prepare(text, clip); clip }, AudioCache.synthesisExecutor)
+    }
+
+    private fun await(future: CompletableFuture<PcmClip>): PcmClip {
+        if (!future.isDone) {
+            _waits += 1
+            logger.debug { "playback is waiting for audio that is not synthesized yet" }
+        }
+
+        val start = System.nanoTime()
+        try {
+            return future.join()
+        } catch (e: CompletionException) {
+            throw e.cause ?: e
+        } finally {
+            _waitedMillis += (System.nanoTime() - start) / 1_000_000
+        }
+    }
+}
@@ -1,332 +1,531 @@
 package net.lyrex.dictation
 
-import com.google.cloud.texttospeech.v1.AudioEncoding
-
 import mu.KotlinLogging
 
 import net.lyrex.audio.*
 import net.lyrex.nlp.*
 
 import java.io.*
-import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
-import javax.sound.sampled.AudioFileFormat
-import javax.sound.sampled.AudioInputStream
-import javax.sound.sampled.AudioSystem
 
-import kotlin.math.roundToInt
+import kotlin.math.max
+import kotlin.math.min
 
 
 private val logger = KotlinLogging.logger {}
 
+// the audio cache holds the clips at synthesis speed, their renders at the playback speed are cached by this key
+private data class StretchedClipKey(val text: String, val voiceName: String, val speakingSpeed: SpeakingSpeed)
+
 class DictateController {
-    var paused = false
+    companion object {
+        // edits are dissected once the text was not edited for this long
+        private val editDebounceMillis: Long = java.lang.Long.getLong("diktat.editor.debounceMillis", 300L)
+
+        private val dissectionScheduler: ScheduledExecutorService by lazy {
+            Executors.newSingleThreadScheduledExecutor { r ->
+                val thread = Thread(r, "text-dissection")
+                thread.isDaemon = true
+                thread
+            }
+        }
+    }
 
-    constructor(inputText: String, dictateOptions: DictateOptions) {
-        this.dictateText = inputText
-        this.dictateOptions = dictateOptions
+    @Volatile
+    var paused = false
 
-        this._audioCache = AudioCache(AudioEncoding.LINEAR16, dictateOptions.voice, dictateOptions.speakingSpeed)
+    constructor(inputText: String, dictateOptions: DictateOptions, audioCache: IAudioCache) {
+        this._audioCache = audioCache
         this._nlpProcessor = NLPProcessor(
-            this.dictateOptions.language, dictateOptions.pronouncePunctation,
+            dictateOptions.language, dictateOptions.pronouncePunctation,
             dictateOptions.charactersPerSentencePartTarget, dictateOptions.charactersPerSentencePartMax
         )
+        this._segmentation = TextSegmentation(_nlpProcessor)
+
+        this.dictateText = inputText
+        this.dictateOptions = dictateOptions
     }
 
     // ---[ member methods
     fun dictateFullText() {
-        parseTextIntoSentencesIfNecessary()
+        val generation = _playbackGeneration
 
+        // a text that was not dissected yet is played sentence by sentence while the rest is still being dissected.
+        // reading the full dictation first needs every sentence up front
         if (!paused) {
-            _currentSentenceIndex = 0
-        } else {
-            paused = false
-        }
-
-        // actually play audio for dictate now
-        if (dictateOptions.readFullDictateOnce) {
-            _sentences.forEach { sentence ->
-                val sentenceText = sentence.joinToString(separator = " ")
-                val sentenceAudio = _audioCache.getAudioForText(sentenceText)
-                logger.debug { "plaing back audio for \"$sentenceText\"" }
-                _audioPlayer.play(sentenceAudio)
-                _audioPlayer.waitUntilPlayingIsOver()
-
-                if (paused) {
-                    return
+            _dictationRequestedAt = System.nanoTime()
+
+            // the streamed update dissects the whole text, a pending dissection of edits has nothing left to do
+            _pendingDissection?.cancel(false)
+            val update = if (dictateOptions.readFullDictateOnce) null else _segmentation.updateStreaming()
+            if (update != null) {
+                _streamedUpdate = update
+                _plan = null
+                _currentSentenceIndex = 0
+                _position = 0
+
+                if (dictateWhileDissecting(update, generation)) {
+                    _position = 0
+                    _currentSentenceIndex = 0
+                    logger.info { "audio cache stats after dictation: ${_audioCache.stats}" }
                 }
+                return
             }
         }
 
-        // dictate sentence by sentence
-        _sentences.forEachIndexed { index, _ ->
-            if (_sentences.size > _currentSentenceIndex && index < _currentSentenceIndex) {
-                return@forEachIndexed
+        val plan = playbackPlan()
+
+        var start = 0
+        if (paused) {
+            start = _position
+
+            // the player still holds the interrupted segment and the ones queued behind it, it continues them at the
+            // frame it was paused at
+            val resumed = synchronized(_playbackLock) {
+                paused = false
+                if (_interruptedInPlayer) {
+                    _interruptedInPlayer = false
+                    _audioPlayer.resume()
+                } else {
+                    null
+                }
             }
 
-            _currentSentenceIndex = index
-            try {
-                dictateSentence(index)
-            } catch (e: InterruptedException) {
-                return
+            if (resumed != null) {
+                resumed.join()
+
+                synchronized(_playbackLock) {
+                    if (generation != _playbackGeneration) {
+                        return
+                    }
+                    if (paused) {
+                        _interruptedInPlayer = true
+                        return
+                    }
+                }
+                start = _queuedEnd
             }
+        }
 
-            // wait configured time between sentences
-            if (dictateOptions.pauseTimeBetweenSentences > Duration.ZERO) {
-                TimeUnit.MILLISECONDS.sleep(dictateOptions.pauseTimeBetweenSentences.toMillis())
+        withPrefetching(prefetchTexts(plan, start until plan.size)) {
+            if (!playSegments(plan, start until plan.size, generation)) {
+                return
             }
         }
 
+        _position = 0
         _currentSentenceIndex = 0
+        logger.info { "audio cache stats after dictation: ${_audioCache.stats}" }
     }
 
-    private fun getAudioForSentence(sentenceParts: List<String>): List<ByteArray> {
-        val sentenceAudio = mutableListOf<ByteArray>()
-
-        val silenceBytes = this.javaClass.getResourceAsStream("/audio/silence-500ms.wav").use { s ->
-            s.readBytes()
-        }
-
-        val addFullSentenceAudio = {
-            val text = sentenceParts.joinToString(separator = " ")
-            val audio = _audioCache.getAudioForText(text)
-            sentenceAudio.add(audio)
-        }
+    // plays every sentence as soon as it is dissected, returns false if the playback was paused in between. the plan of
+    // the sentences so far is a prefix of the plan of the whole text, so the position stays valid once it is complete
+    private fun dictateWhileDissecting(update: TextSegmentation.StreamedUpdate, generation: Long): Boolean {
+        // the prefetcher does not wait for sentences that are still being dissected, it continues with them once they
+        // are done
+        val upcomingTexts = sequence<String?> {
+            for (sentence in update.sentences) {
+                while (!sentence.isDone) {
+                    yield(null)
+                }
 
-        if (dictateOptions.readFullSentenceAtStart) {
-            addFullSentenceAudio()
+                val sentencePlan = PlaybackPlan.build(listOf(sentence.join()), dictateOptions)
+                yieldAll(prefetchTexts(sentencePlan, 0 until sentencePlan.size))
+            }
         }
 
-        sentenceParts.forEach { part ->
-            for (i in dictateOptions.partRepetitions downTo 0) {
-                val partAudio = _audioCache.getAudioForText(part)
-                sentenceAudio.add(partAudio)
+        withPrefetching(upcomingTexts) {
+            val plan = PlaybackPlan.build(listOf(), dictateOptions)
+            for (sentence in update.sentences) {
+                val start = plan.size
+                plan.append(sentence.join())
 
-                if (dictateOptions.pauseTimeBetweenRepetitions > Duration.ZERO && partAudio.isNotEmpty()) {
-                    val sleepDuration = dictateOptions.pauseTimeBetweenSentences.toMillis()
-                    val pauseCount = (sleepDuration / 500.0f).roundToInt()
-
-                    for (n in 0..pauseCount) {
-                        sentenceAudio.add(silenceBytes)
-                    }
+                if (!playSegments(plan, start until plan.size, generation)) {
+                    return false
                 }
             }
         }
 
-        if (dictateOptions.readFullSentenceAtEnd) {
-            addFullSentenceAudio()
-        }
-
-        return sentenceAudio
+        return true
     }
 
-    private fun dictateSentence(index: Int) {
-        if (_sentences.lastIndex < index) {
-            return
-        }
+    private fun dictateSentence(plan: PlaybackPlan, index: Int) {
+        val segments = plan.sentenceStart(index) until plan.sentenceEnd(index)
 
-        val sentence = _sentences[index]
-        dictateSentence(sentence)
+        withPrefetching(prefetchTexts(plan, segments)) {
+            playSegments(plan, segments, _playbackGeneration)
+        }
     }
 
-    private fun dictateSentence(sentenceParts: List<String>) {
-        val readFullSentence = {
-            val sentenceText = sentenceParts.joinToString(separator = " ")
-            val sentenceAudio = _audioCache.getAudioForText(sentenceText)
-            logger.debug { "plaing back audio for \"$sentenceText\"" }
-            _audioPlayer.play(sentenceAudio)
-            _audioPlayer.waitUntilPlayingIsOver()
-
-            if (paused) {
-                _pausedAtPart = 0
-                throw InterruptedException("playback paused")
-            }
-        }
+    // plays the given segments of the plan, returns false if the playback was paused in between. a player that queues
+    // segments already gets the next clip and the pause after it while a clip plays, so they follow without a gap. the
+    // position is the segment that is playing, a paused dictation continues with it. a stop ends the playback of
+    // `generation` and leaves the position to stopDictate()
+    private fun playSegments(plan: PlaybackPlan, segments: IntRange, generation: Long): Boolean {
+        val queued = ArrayDeque<CompletableFuture<Void?>>()
+        var next = segments.first
+
+        for (index in segments) {
+            val segment = plan.segments[index]
+            synchronized(_playbackLock) {
+                if (generation != _playbackGeneration) {
+                    return false
+                }
 
-        if (dictateOptions.readFullSentenceAtStart && _pausedAtPart == 0) {
-            readFullSentence()
-        }
+                _position = index
+                if (paused) {
+                    _interruptedInPlayer = next > index
+                    _queuedEnd = next
+                    return false
+                }
 
-        sentenceParts.forEachIndexed { idx, part ->
-            if (sentenceParts.size > _pausedAtPart && idx < _pausedAtPart) {
-                return@forEachIndexed
+                if (segment is PlaybackSegment.Clip && index >= plan.dictationStart) {
+                    _currentSentenceIndex = segment.sentenceIndex
+                }
             }
 
-            for (i in dictateOptions.partRepetitions downTo 0) {
-                val partAudio = _audioCache.getAudioForText(part)
-                logger.debug { "playing back audio for \"$part\"" }
-                _audioPlayer.play(partAudio)
-                _audioPlayer.waitUntilPlayingIsOver()
+            val queueEnd = if (_audioPlayer.queuesSegments) queueAheadEnd(plan, index, segments.last) else index
+            while (next <= queueEnd) {
+                queued.addLast(startSegment(plan.segments[next], generation) ?: break)
+                next += 1
+            }
 
-                if (paused) {
-                    _pausedAtPart = idx
-                    throw InterruptedException("playback paused")
+            queued.removeFirstOrNull()?.join()
+            synchronized(_playbackLock) {
+                if (generation != _playbackGeneration) {
+                    return false
                 }
 
-                if (dictateOptions.pauseTimeBetweenRepetitions > Duration.ZERO) {
-                    TimeUnit.MILLISECONDS.sleep(dictateOptions.pauseTimeBetweenRepetitions.toMillis())
+                // paused before the segment was started, nothing of it was played yet
+                if (next <= index) {
+                    _interruptedInPlayer = false
+                    return false
                 }
 
-                _pausedAtPart = 0
+                if (paused) {
+                    _interruptedInPlayer = true
+                    _queuedEnd = next
+                    return false
+                }
             }
         }
 
-        if (dictateOptions.readFullSentenceAtEnd) {
-            readFullSentence()
+        return true
+    }
+
+    // null if the playback was paused or stopped while the audio was fetched. the player is handed the segment under
+    // the lock of pauseDictate(), so a pause either keeps the segment from starting or pauses it in the player
+    private fun startSegment(segment: PlaybackSegment, generation: Long): CompletableFuture<Void?>? {
+        val start: () -> CompletableFuture<Void?> = when (segment) {
+            is PlaybackSegment.Clip    -> {
+                val audio = applyPlaybackSpeed(segment.text, fetchAudio(segment.text))
+                ({
+                    reportFirstAudio()
+                    logger.debug { "playing back audio for \"${segment.text}\"" }
+                    _audioPlayer.play(audio)
+                })
+            }
+            is PlaybackSegment.Silence -> ({ _audioPlayer.playSilence(segment.duration) })
+        }
+
+        synchronized(_playbackLock) {
+            if (paused || generation != _playbackGeneration) {
+                return null
+            }
+            return start()
         }
     }
 
-    fun generateAudioFromDicate(): ByteArray {
-        val audioPartsList = mutableListOf<ByteArray>()
+    // last segment to queue while `index` plays: the next clip and the pause right after it
+    private fun queueAheadEnd(plan: PlaybackPlan, index: Int, last: Int): Int {
+        var end = index + 1
+        while (end <= last && plan.segments[end] !is PlaybackSegment.Clip) {
+            end += 1
+        }
+        if (end < last && plan.segments[end + 1] is PlaybackSegment.Silence) {
+            end += 1
+        }
 
-        parseTextIntoSentencesIfNecessary()
+        return min(end, last)
+    }
 
-        val silenceBytes = this.javaClass.getResourceAsStream("/audio/silence-500ms.wav").use { s ->
-            s.readBytes()
+    // returns false if there is nothing to export
+    @Throws(IOException::class)
+    fun exportDictate(outputFile: File): Boolean {
+        val plan = playbackPlan()
+        if (plan.sentenceCount == 0) {
+            return false
         }
 
-        if (dictateOptions.readFullDictateOnce) {
-            _sentences.forEach { sentence ->
-                val sentenceText = sentence.joinToString(separator = " ")
-                val sentenceAudio = _audioCache.getAudioForText(sentenceText)
+        // all clips are synthesized into the cache before the assembly starts
+        synthesizeExportClips(plan)
+        logger.info { "audio cache stats after export: ${_audioCache.stats}" }
+
+        // the clips are taken from the cache, brought to the playback speed and written in plan order one at a time, so
+        // only the clip that is being written is held in memory
+        val clipFrames = mutableMapOf<String, Long>()
+        WavFileWriter(outputFile).use { writer ->
+            plan.segments.forEach { segment ->
+                when (segment) {
+                    is PlaybackSegment.Clip    -> {
+                        val clip = applyPlaybackSpeed(segment.text, getAudioForText(segment.text))
+                        clipFrames[segment.text] = clip.frames
+                        writer.write(clip)
+                    }
+                    is PlaybackSegment.Silence -> writer.writeSilence(segment.duration)
+                }
+            }
 
-                audioPartsList.add(sentenceAudio)
+            writer.format?.let { format ->
+                val duration = plan.duration(format.frameRate) { text -> clipFrames.getValue(text) }
+                logger.info { "exported ${plan.size} segments with a duration of $duration" }
             }
+            logger.info { "exported ${writer.framesWritten} frames to \"$outputFile\"" }
         }
 
-        _sentences.forEach { sentence ->
-            val sentenceAudio = getAudioForSentence(sentence)
-            audioPartsList.addAll(sentenceAudio)
-
-            // [...]
+        return true
+    }
 
-            // wait configured time between sentences
-            if (dictateOptions.pauseTimeBetweenSentences > Duration.ZERO && sentenceAudio.isNotEmpty()) {
-                var pauseDuration =
-                    dictateOptions.pauseTimeBetweenSentences - dictateOptions.pauseTimeBetweenRepetitions
-                if (pauseDuration < Duration.ZERO) {
-                    pauseDuration = Duration.ZERO
-                }
+    // the futures only fill the cache, the clips they complete with are dropped right away
+    private fun synthesizeExportClips(plan: PlaybackPlan) {
+        val voice = dictateOptions.voice
+        val speakingSpeed = synthesisSpeed
 
-                val pauseDurationMillis = pauseDuration.toMillis()
-                val pauseCount = (pauseDurationMillis / 500.0f).roundToInt()
+        // every text is synthesized once, no matter how often the export repeats it
+        val texts = plan.uniqueTexts
+        logger.info { "synthesizing ${texts.size} unique texts for export" }
 
-                for (n in 0..pauseCount) {
-                    audioPartsList.add(silenceBytes)
-                }
+        SynthesisScheduler().use { scheduler ->
+            val sentenceFutures = plan.sentences.map { sentence ->
+                _audioCache.prepareSentenceAsync(sentence, voice, speakingSpeed, scheduler)
+            }
+            val clipFutures = texts.map { text ->
+                _audioCache.getAudioForTextAsync(text, voice, speakingSpeed, scheduler).thenRun { }
             }
-        }
 
-        return mergeAudioStreams(audioPartsList, AudioFileFormat.Type.WAVE)
+            CompletableFuture.allOf(*(sentenceFutures + clipFutures).toTypedArray()).join()
+        }
     }
 
     fun dictatePreviousSentence() {
-        parseTextIntoSentencesIfNecessary()
+        val plan = playbackPlan()
+        discardInterruptedSegment()
 
         if (_currentSentenceIndex > 0) {
-            _pausedAtPart = 0
             paused = false
 
             _currentSentenceIndex -= 1
-            dictateSentence(_currentSentenceIndex)
+            dictateSentence(plan, _currentSentenceIndex)
         }
     }
 
     fun dictateCurrentSentence() {
-        parseTextIntoSentencesIfNecessary()
+        val plan = playbackPlan()
+        discardInterruptedSegment()
 
-        if (_sentences.lastIndex <= _currentSentenceIndex) {
-            _pausedAtPart = 0
+        if (_currentSentenceIndex in 0 until plan.sentenceCount) {
             paused = false
 
-            dictateSentence(_currentSentenceIndex)
+            dictateSentence(plan, _currentSentenceIndex)
         }
     }
 
     fun dictateNextSentence() {
-        parseTextIntoSentencesIfNecessary()
+        val plan = playbackPlan()
+        discardInterruptedSegment()
 
-        if ((_currentSentenceIndex + 1) < _sentences.lastIndex) {
-            _pausedAtPart = 0
+        if (_currentSentenceIndex + 1 < plan.sentenceCount) {
             paused = false
 
             _currentSentenceIndex += 1
-            dictateSentence(_currentSentenceIndex)
+            dictateSentence(plan, _currentSentenceIndex)
         }
     }
 
+    // ends the running playback, the next dictation starts over at the beginning
     fun stopDictate() {
-        paused = true
-        _audioPlayer.stop()
-        _currentSentenceIndex = 0
-        _pausedAtPart = 0
+        synchronized(_playbackLock) {
+            _playbackGeneration += 1
+            paused = false
+            _audioPlayer.stop()
+            _interruptedInPlayer = false
+            _currentSentenceIndex = 0
+            _position = 0
+        }
     }
 
     fun pauseDictate() {
-        paused = true
-        _audioPlayer.stop() // _audioPlayer.pause()
+        synchronized(_playbackLock) {
+            paused = true
+            _audioPlayer.pause()
+        }
     }
 
     fun resumeDictate() {
-        paused = false
-        _audioPlayer.resume()
+        synchronized(_playbackLock) {
+            paused = false
+            _audioPlayer.resume()
+        }
     }
 
-    private fun parseTextIntoSentencesIfNecessary() {
-        if (_textChanged) {
-            _sentences = if (!dictateText.isNullOrBlank()) {
-                _nlpProcessor.dissectText(dictateText)
-            } else {
-                listOf()
+    // replaces `removedLength` characters at `offset` with `inserted`, only the sentences around the edit are
+    // dissected again once the edits pause
+    fun editText(offset: Int, removedLength: Int, inserted: String) {
+        _segmentation.edit(offset, removedLength, inserted)
+
+        _pendingDissection?.cancel(false)
+        _pendingDissection = dissectionScheduler.schedule(
+            { dissectEditsInBackground() }, editDebounceMillis, TimeUnit.MILLISECONDS
+        )
+    }
+
+    // the paused segment is not continued when something else is played
+    private fun discardInterruptedSegment() {
+        if (_interruptedInPlayer) {
+            _audioPlayer.stop()
+            _interruptedInPlayer = false
+        }
+    }
+
+    // clip texts of the given segments for the prefetcher. each sentence is prepared once the prefetcher reaches it,
+    // with sentence synthesis enabled its parts are then served by a single request
+    private fun prefetchTexts(plan: PlaybackPlan, segments: IntRange): Sequence<String> = sequence {
+        val preparedSentences = mutableSetOf<Int>()
+
+        for (index in segments) {
+            val clip = plan.segments[index] as? PlaybackSegment.Clip ?: continue
+
+            if (preparedSentences.add(clip.sentenceIndex)) {
+                prepareSentence(plan.sentences[clip.sentenceIndex])
             }
+            yield(clip.text)
+        }
+    }
+
+    private inline fun <T> withPrefetching(upcomingTexts: Sequence<String?>, block: () -> T): T {
+        // the prefetched clips are brought to the playback speed on the synthesis executor as well
+        val prepare: ((String, PcmClip) -> Unit)? = if (_timeStretch) {
+            { text, audio -> applyPlaybackSpeed(text, audio) }
+        } else {
+            null
+        }
+        _prefetcher = AudioPrefetcher(_audioCache, dictateOptions.voice, synthesisSpeed, upcomingTexts, prepare)
 
-            _textChanged = false
+        try {
+            return block()
+        } finally {
+            logger.info { "prefetch stats: ${_prefetcher?.stats}" }
+            _prefetcher = null
         }
     }
 
-    private fun mergeAudioStreams(audioInputByteArrays: List<ByteArray>, audioType: AudioFileFormat.Type): ByteArray {
-        if (audioInputByteArrays.isEmpty()) {
-            return ByteArray(0)
+    private fun prepareSentence(sentenceParts: List<String>): CompletableFuture<Void?> =
+        _audioCache.prepareSentenceAsync(sentenceParts, dictateOptions.voice, synthesisSpeed)
+
+    private fun fetchAudio(text: String): PcmClip =
+        _prefetcher?.getAudio(text, dictateOptions.voice, synthesisSpeed) ?: getAudioForText(text)
+
+    // the audio cache is keyed by voice and speed, so option changes only change the lookup and never drop audio
+    private fun getAudioForText(text: String): PcmClip =
+        _audioCache.getAudioForText(text, dictateOptions.voice, synthesisSpeed)
+
+    // with time stretching everything is synthesized at normal speed and the selected speed is rendered locally, so a
+    // speed change costs no requests and applies from the next clip on
+    private val synthesisSpeed: SpeakingSpeed
+        get() = if (_timeStretch) SpeakingSpeed.Normal else dictateOptions.speakingSpeed
+
+    // every text is stretched once per speed, repetitions and repeated sentences reuse the render
+    private fun applyPlaybackSpeed(text: String, audio: PcmClip): PcmClip {
+        val speed = dictateOptions.speakingSpeed
+        if (!_timeStretch || speed == SpeakingSpeed.Normal) {
+            return audio
         }
-        if (audioInputByteArrays.size == 1) {
-            return audioInputByteArrays.first()
+
+        val key = StretchedClipKey(text, dictateOptions.voice.name, speed)
+        return _stretchedClips[key] ?: TimeStretcher.stretch(audio, speed.speed).also { clip ->
+            _stretchedClips[key] = clip
         }
+    }
 
-        val clipA = AudioSystem.getAudioInputStream(ByteArrayInputStream(audioInputByteArrays[0]))
-        val clipB = AudioSystem.getAudioInputStream(ByteArrayInputStream(audioInputByteArrays[1]))
-        var appendedFiles = AudioInputStream(
-            SequenceInputStream(clipA, clipB),
-            clipA.format, clipA.frameLength + clipB.frameLength
-        )
+    private fun reportFirstAudio() {
+        if (_dictationRequestedAt != 0L) {
+            logger.info { "time to first audio: ${(System.nanoTime() - _dictationRequestedAt) / 1_000_000} ms" }
+            _dictationRequestedAt = 0L
+        }
+    }
 
+    // takes over the sentences of a dictation that was started while the text was dissected. its positions are valid
+    // in the plan of all sentences, unless the text was edited in the meantime
+    private fun finishStreamedDissection() {
+        val update = _streamedUpdate ?: return
+        _streamedUpdate = null
+
+        val completed = try {
+            update.completion.join()
+        } catch (e: CompletionException) {
+            logger.warn(e.cause) { "could not dissect the text" }
+            false
+        }
 
-        for (i in 1 until audioInputByteArrays.size - 1) {
-            val clip = AudioSystem.getAudioInputStream(ByteArrayInputStream(audioInputByteArrays[i + 1]))
+        if (completed) {
+            _sentencesVersion = _segmentation.version
+            _sentences = _segmentation.sentences
+            _plan = PlaybackPlan.build(_sentences, dictateOptions)
+        }
+    }
+
+    // edits that were not dissected in the background yet are dissected right away
+    private fun parseTextIntoSentencesIfNecessary() {
+        _segmentation.update()
 
-            appendedFiles = AudioInputStream(
-                SequenceInputStream(appendedFiles, clip),
-                appendedFiles.format,
-                appendedFiles.frameLength + clip.frameLength
-            )
+        val version = _segmentation.version
+        if (version != _sentencesVersion) {
+            _sentences = _segmentation.sentences
+            _sentencesVersion = version
+            _plan = null
         }
+    }
 
-        val output = ByteArrayOutputStream()
+    private fun dissectEditsInBackground() {
         try {
-            AudioSystem.write(appendedFiles, audioType, output)
-        } catch (ex: Exception) {
-            logger.error { "exception Occurred: $ex" }
-            return ByteArray(0)
+            _segmentation.update()
+        } catch (e: Exception) {
+            logger.warn(e) { "could not dissect the edited text" }
         }
+    }
+
+    // the plan is compiled once and reused until the text or the options change
+    private fun playbackPlan(): PlaybackPlan {
+        finishStreamedDissection()
+        parseTextIntoSentencesIfNecessary()
+        _plan?.let { plan -> return plan }
+
+        val plan = PlaybackPlan.build(_sentences, dictateOptions)
 
-        return output.toByteArray()
+        // a paused dictation continues at the start of its sentence in the new plan
+        discardInterruptedSegment()
+        _currentSentenceIndex = _currentSentenceIndex.coerceIn(0, max(plan.sentenceCount - 1, 0))
+        _position = if (plan.sentenceCount > 0 && _currentSentenceIndex > 0) {
+            plan.sentenceStart(_currentSentenceIndex)
+        } else {
+            0
+        }
+
+        _plan = plan
+        return plan
     }
 
     // ---[ member variables
-    var dictateText: String = ""
+    var dictateText: String
+        get() = _segmentation.text
         set(value) {
-            field = value
+            _segmentation.text = value
             _currentSentenceIndex = 0
-            _textChanged = true
         }
 
     var dictateOptions: DictateOptions
@@ -336,13 +535,13 @@ class DictateController {
                 return
             }
 
-            // recreate the NLP pipeline if the language changed
+            // recreate the NLP pipeline if the language changed. the text is dissected again once it is dictated
             if (field == null || field.voice.language != value.voice.language) {
                 _nlpProcessor = NLPProcessor(
                     value.voice.language, value.pronouncePunctation,
                     value.charactersPerSentencePartTarget, value.charactersPerSentencePartMax
                 )
-                parseTextIntoSentencesIfNecessary()
+                _segmentation.processor = _nlpProcessor
             }
 
             // update the NLP pipeline if the part parameters changes
@@ -352,27 +551,40 @@ class DictateController {
                 ) {
                     _nlpProcessor.targetPartLength = value.charactersPerSentencePartTarget
                     _nlpProcessor.maxPartLength = value.charactersPerSentencePartMax
-                    _textChanged = true
-
-                    parseTextIntoSentencesIfNecessary()
+                    _segmentation.invalidate()
                 }
             }
 
-            // invalidate the audio cache if the voice changed
-            if (field == null || field.voice != value.voice || field.speakingSpeed != value.speakingSpeed) {
-                _audioCache = AudioCache(AudioEncoding.LINEAR16, value.voice, value.speakingSpeed)
-            }
-
             field = value
+            _plan = null
+            _streamedUpdate = null
         }
 
 
     // ---[ private members
-    private val _audioPlayer: IAudioPlayer = AudioPlayer()
-    private var _audioCache: IAudioCache
+    private val _audioPlayer: IAudioPlayer = if (StreamingAudioPlayer.isEnabled) StreamingAudioPlayer() else AudioPlayer()
+    private val _audioCache: IAudioCache
     private var _nlpProcessor: INLPProcessor
+    private val _segmentation: TextSegmentation
     private var _sentences: List<List<String>> = listOf()
+    private var _sentencesVersion = -1L
+    private var _pendingDissection: ScheduledFuture<*>? = null
+    private var _streamedUpdate: TextSegmentation.StreamedUpdate? = null
+    private var _dictationRequestedAt = 0L
     private var _currentSentenceIndex = 0
-    private var _textChanged = true
-    private var _pausedAtPart = 0
+    private var _plan: PlaybackPlan? = null
+    private var _position = 0
+    @Volatile
+    private var _interruptedInPlayer = false
+    private var _queuedEnd = 0
+
+    // pause, stop and the start of a segment in the player are ordered by the lock. a stop starts a new generation,
+    // the playback of an older one ends at its next check
+    private val _playbackLock = Object()
+    @Volatile
+    private var _playbackGeneration = 0L
+    private val _timeStretch = TimeStretcher.isEnabled
+    private val _stretchedClips =
+        MemoryAudioCache<StretchedClipKey, PcmClip>(TimeStretcher.cacheBytes, PcmClip::byteLength)
+    private var _prefetcher: AudioPrefetcher? = null
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package net.lyrex.dictation
+
+import java.time.Duration
+
+
+sealed class PlaybackSegment {
+    // `sentenceIndex` is the sentence the text belongs to, `partIndex` is -1 for the full sentence
+    data class Clip(val text: String, val sentenceIndex: Int, val partIndex: Int) : PlaybackSegment()
+    data class Silence(val duration: Duration) : PlaybackSegment()
+}
+
+// The order of everything that is played for a dictation: the full dictation if requested, then every sentence with
+// its full sentence reads, part repetitions and pauses. Live dictation and export both consume this plan, so they can
+// not disagree on what is played and for how long.
+//
+// Pauses are placed between two clips of the same sentence (pauseTimeBetweenRepetitions) and after every sentence
+// (pauseTimeBetweenSentences).
+class PlaybackPlan private constructor(private val options: DictateOptions) {
+    companion object {
+        @JvmStatic
+        fun build(sentences: List<List<String>>, options: DictateOptions): PlaybackPlan {
+            val plan = PlaybackPlan(options)
+
+            if (options.readFullDictateOnce && sentences.isNotEmpty()) {
+                sentences.forEachIndexed { index, sentence ->
+                    plan._segments.add(PlaybackSegment.Clip(sentence.joinToString(separator = " "), index, -1))
+                }
+                plan.addSilence(options.pauseTimeBetweenSentences)
+            }
+            plan.dictationStart = plan._segments.size
+
+            sentences.forEach { sentence -> plan.addSentence(sentence) }
+            return plan
+        }
+    }
+
+    private val _sentences = mutableListOf<List<String>>()
+    private val _segments = mutableListOf<PlaybackSegment>()
+    private val _sentenceStarts = mutableListOf<Int>()
+    private val _sentenceEnds = mutableListOf<Int>()
+
+    val sentences: List<List<String>>
+        get() = _sentences
+
+    val segments: List<PlaybackSegment>
+        get() = _segments
+
+    var dictationStart = 0
+        private set
+
+    val size: Int
+        get() = segments.size
+
+    val sentenceCount: Int
+        get() = sentences.size
+
+    val uniqueTexts: Set<String>
+        get() = segments.filterIsInstance<PlaybackSegment.Clip>().mapTo(LinkedHashSet()) { clip -> clip.text }
+
+    // first segment of a sentence
+    fun sentenceStart(sentenceIndex: Int): Int = _sentenceStarts[sentenceIndex]
+
+    // end of the last clip of a sentence, the pause after the sentence is not included
+    fun sentenceEnd(sentenceIndex: Int): Int = _sentenceEnds[sentenceIndex]
+
+    // adds the segments of one more sentence at the end, so a plan can grow while the text is still being dissected.
+    // appending every sentence gives the same plan as building it from all of them. the full dictation that may be read
+    // first needs every sentence up front, such a plan can not be appended to. a plan must not be shared while it grows
+    fun append(sentence: List<String>) {
+        check(!options.readFullDictateOnce) { "a plan that reads the full dictation first can not be appended to" }
+        addSentence(sentence)
+    }
+
+    private fun addSentence(sentence: List<String>) {
+        val index = _sentences.size
+        _sentences.add(sentence)
+        _sentenceStarts.add(_segments.size)
+        val sentenceText = sentence.joinToString(separator = " ")
+
+        val clips = mutableListOf<PlaybackSegment.Clip>()
+        if (options.readFullSentenceAtStart) {
+            clips.add(PlaybackSegment.Clip(sentenceText, index, -1))
+        }
+        sentence.forEachIndexed { partIndex, part ->
+            repeat(options.partRepetitions + 1) { clips.add(PlaybackSegment.Clip(part, index, partIndex)) }
+        }
+        if (options.readFullSentenceAtEnd) {
+            clips.add(PlaybackSegment.Clip(sentenceText, index, -1))
+        }
+
+        clips.forEachIndexed { clipIndex, clip ->
+            if (clipIndex > 0) {
+                addSilence(options.pauseTimeBetweenRepetitions)
+            }
+            _segments.add(clip)
+        }
+
+        _sentenceEnds.add(_segments.size)
+        addSilence(options.pauseTimeBetweenSentences)
+    }
+
+    private fun addSilence(duration: Duration) {
+        if (duration > Duration.ZERO) {
+            _segments.add(PlaybackSegment.Silence(duration))
+        }
+    }
+
+    // playing time of the plan once the length of every clip is known
+    fun duration(frameRate: Float, clipFrames: (String) -> Long): Duration {
+        val frames = segments.sumOf { segment ->
+            when (segment) {
+                is PlaybackSegment.Clip    -> clipFrames(segment.text)
+                is PlaybackSegment.Silence -> segment.duration.toNanos() * frameRate.toLong() / 1_000_000_000L
+            }
+        }
+
+        return Duration.ofMillis((frames * 1000 / frameRate).toLong())
+    }
+}
@@ -0,0 +1,272 @@
+package net.lyrex.dictation
+
+import mu.KotlinLogging
+
+import net.lyrex.nlp.INLPProcessor
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+private val logger = KotlinLogging.logger {}
+
+
+// Text of a dictation and its dissection into sentences, kept up to date with edits.
+//
+// An edit only changes the text and marks the characters it touched. `update` then re-dissects the stretch between the
+// sentences next to the marked characters and keeps every other sentence, their offsets are moved along with the
+// edits. The neighbouring sentences are included because an edit at a sentence boundary can merge or split sentences.
+//
+// Edits are cheap and may come from any thread. An update that finds the text edited again after it started drops
+// its result and leaves the text marked for the next one. There is at most one dissection of the whole text at a time,
+// `update` and `updateStreaming` share the one that is running for the current text.
+class TextSegmentation(processor: INLPProcessor) {
+    // parts of every sentence as it is dissected, `completion` tells whether the result was taken over
+    class StreamedUpdate(
+        val sentences: List<CompletableFuture<List<String>>>,
+        val completion: CompletableFuture<Boolean>
+    )
+
+    private val lock = Object()
+    private val updateLock = Object()
+    // held while a streamed update is started, so a second caller waits for it instead of starting another one
+    private val streamingLock = Object()
+
+    private val _text = StringBuilder()
+
+    // character offsets and parts of the dissected sentences, in text order
+    private var _begins = IntArray(0)
+    private var _ends = IntArray(0)
+    private var _parts: List<List<String>> = listOf()
+
+    // characters that changed since the last update, _dirtyStart is -1 if nothing changed
+    private var _dirtyStart = 0
+    private var _dirtyEnd = 0
+    private var _generation = 0L
+    private var _version = 0L
+
+    // the dissection of the whole text that is running, for the text of `_streamingGeneration`
+    private var _streaming: StreamedUpdate? = null
+    private var _streamingGeneration = -1L
+
+    var processor: INLPProcessor = processor
+        set(value) {
+            synchronized(lock) {
+                field = value
+                invalidate()
+            }
+        }
+
+    var text: String
+        get() = synchronized(lock) { _text.toString() }
+        set(value) {
+            synchronized(lock) {
+                _text.setLength(0)
+                _text.append(value)
+                invalidate()
+            }
+        }
+
+    // replaces `removedLength` characters at `offset` with `inserted`
+    fun edit(offset: Int, removedLength: Int, inserted: String) {
+        synchronized(lock) {
+            require(offset >= 0 && removedLength >= 0 && offset + removedLength <= _text.length) {
+                "edit of $removedLength characters at $offset is outside of the text"
+            }
+
+            _text.replace(offset, offset + removedLength, inserted)
+
+            val removedEnd = offset + removedLength
+            val insertedEnd = offset + inserted.length
+            val delta = inserted.length - removedLength
+
+            // sentences behind the edit move along, sentences overlapping it are re-dissected anyway and only need to stay
+            // in order
+            for (i in _begins.indices) {
+                if (_begins[i] >= removedEnd) {
+                    _begins[i] += delta
+                    _ends[i] += delta
+                } else if (_ends[i] > offset) {
+                    _begins[i] = minOf(_begins[i], offset)
+                    _ends[i] = maxOf(_ends[i] + delta, offset)
+                }
+            }
+
+            if (_dirtyStart < 0) {
+                _dirtyStart = offset
+                _dirtyEnd = insertedEnd
+            } else {
+                val start = if (_dirtyStart >= removedEnd) _dirtyStart + delta else _dirtyStart
+                val end = if (_dirtyEnd >= removedEnd) _dirtyEnd + delta else _dirtyEnd
+                _dirtyStart = minOf(start, offset)
+                _dirtyEnd = minOf(maxOf(end, insertedEnd), _text.length)
+            }
+            _generation += 1
+        }
+    }
+
+    // marks the whole text, e.g. because the dissection parameters changed
+    fun invalidate() {
+        synchronized(lock) {
+            _begins = IntArray(0)
+            _ends = IntArray(0)
+            _parts = listOf()
+            _dirtyStart = 0
+            _dirtyEnd = _text.length
+            _generation += 1
+        }
+    }
+
+    val isDirty: Boolean
+        get() = synchronized(lock) { _dirtyStart >= 0 }
+
+    // changes whenever the sentences change
+    val version: Long
+        get() = synchronized(lock) { _version }
+
+    val sentences: List<List<String>>
+        get() = synchronized(lock) { _parts }
+
+    // dissects the whole text in the background if no sentence of it is known, null if there is nothing to dissect or
+    // only some sentences have to be dissected again
+    fun updateStreaming(): StreamedUpdate? {
+        synchronized(streamingLock) {
+            val text: String
+            val generation: Long
+            val processor: INLPProcessor
+
+            synchronized(lock) {
+                if (_dirtyStart < 0 || _begins.isNotEmpty() || _text.isBlank()) {
+                    return null
+                }
+
+                val streaming = _streaming
+                if (streaming != null && _streamingGeneration == _generation && !streaming.completion.isDone) {
+                    return streaming
+                }
+
+                text = _text.toString()
+                generation = _generation
+                processor = this.processor
+                _streamingGeneration = generation
+            }
+
+            val futures = processor.dissectSentencesAsync(text)
+            val completion = CompletableFuture.allOf(*futures.toTypedArray()).thenApply {
+                val dissected = futures.map { future -> future.join() }
+
+                synchronized(lock) {
+                    if (_generation != generation) {
+                        return@thenApply false
+                    }
+
+                    _begins = IntArray(dissected.size) { i -> dissected[i].begin }
+                    _ends = IntArray(dissected.size) { i -> dissected[i].end }
+                    _parts = dissected.map { sentence -> sentence.parts }
+
+                    _dirtyStart = -1
+                    _dirtyEnd = -1
+                    _version += 1
+                    true
+                }
+            }.whenComplete { _, _ ->
+                synchronized(lock) {
+                    if (_streamingGeneration == generation) {
+                        _streaming = null
+                    }
+                }
+            }
+
+            val sentences = futures.map { future -> future.thenApply { sentence -> sentence.parts } }
+            val update = StreamedUpdate(sentences, completion)
+            synchronized(lock) {
+                if (_streamingGeneration == generation && !completion.isDone) {
+                    _streaming = update
+                }
+            }
+
+            return update
+        }
+    }
+
+    // re-dissects the changed sentences, returns false if the text was edited while doing so
+    fun update(): Boolean {
+        // without any sentence known the whole text is dissected, possibly by the streamed update that is running
+        val streamed = updateStreaming()
+        if (streamed != null) {
+            try {
+                return streamed.completion.join()
+            } catch (e: CompletionException) {
+                throw e.cause ?: e
+            }
+        }
+
+        synchronized(updateLock) {
+            val text: String
+            val generation: Long
+            val processor: INLPProcessor
+            val first: Int
+            val last: Int
+            val regionStart: Int
+            val regionEnd: Int
+
+            synchronized(lock) {
+                if (_dirtyStart < 0) {
+                    return true
+                }
+
+                text = _text.toString()
+                generation = _generation
+                processor = this.processor
+
+                val count = _begins.size
+                if (count == 0) {
+                    first = 0
+                    last = -1
+                    regionStart = 0
+                    regionEnd = text.length
+                } else {
+                    // the sentences touching the changed characters and one more on each side
+                    val touchedFirst = _ends.indexOfFirst { end -> end >= _dirtyStart }.let { i -> if (i < 0) count else i }
+                    val touchedLast = _begins.indexOfLast { begin -> begin <= _dirtyEnd }
+                    first = maxOf(touchedFirst - 1, 0)
+                    last = minOf(touchedLast + 1, count - 1)
+
+                    // everything between the untouched neighbours, so no whitespace or stray characters are lost
+                    regionStart = if (first == 0) 0 else _ends[first - 1]
+                    regionEnd = if (last == count - 1) text.length else _begins[last + 1]
+                }
+            }
+
+            val dissected = if (regionStart < regionEnd && text.substring(regionStart, regionEnd).isNotBlank()) {
+                processor.dissectSentences(text.substring(regionStart, regionEnd))
+            } else {
+                listOf()
+            }
+
+            synchronized(lock) {
+                if (_generation != generation) {
+                    logger.debug { "text was edited while it was dissected, dropping the result" }
+                    return false
+                }
+
+                val count = _begins.size
+                _begins = _begins.copyOfRange(0, first) +
+                        IntArray(dissected.size) { i -> dissected[i].begin + regionStart } +
+                        _begins.copyOfRange(last + 1, count)
+                _ends = _ends.copyOfRange(0, first) +
+                        IntArray(dissected.size) { i -> dissected[i].end + regionStart } +
+                        _ends.copyOfRange(last + 1, count)
+                _parts = _parts.subList(0, first) + dissected.map { s -> s.parts } + _parts.subList(last + 1, count)
+
+                logger.debug {
+                    "re-dissected ${last - first + 1} sentences into ${dissected.size}, kept ${count - (last - first + 1)}"
+                }
+
+                _dirtyStart = -1
+                _dirtyEnd = -1
+                _version += 1
+                return true
+            }
+        }
+    }
+}
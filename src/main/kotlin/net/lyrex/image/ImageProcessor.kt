@@ -1,11 +1,10 @@
 package net.lyrex.image
 
-import com.google.api.gax.core.FixedCredentialsProvider
-import com.google.auth.oauth2.GoogleCredentials
 import com.google.cloud.vision.v1.*
 import com.google.protobuf.ByteString
 
-import java.io.File
+import net.lyrex.cloud.CloudClients
+
 import java.io.IOException
 
 interface IImageProcessor {
@@ -26,16 +25,10 @@ class ImageProcessor {
 
             var fullText = ""
 
-            // use local google cloud platform credentials
-            val credentials = GoogleCredentials.fromStream(File("gcp-credentials.dat").inputStream())
-            val imageAnnotatorSettings = ImageAnnotatorSettings.newBuilder()
-                .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
-                .build()
-
-            ImageAnnotatorClient.create(imageAnnotatorSettings).use { client ->
+            // the client is shared and long lived, it must not be closed here
+            CloudClients.imageAnnotator.let { client ->
                 val response = client.batchAnnotateImages(requests)
                 val responses = response.responsesList
-                client.close()
 
                 for (res in responses) {
                     if (res.hasError()) {
@@ -1,8 +1,11 @@
 package net.lyrex
 
+import mu.KotlinLogging
+
 import net.lyrex.dictation.DiktatGui
 
 import java.io.File
+import java.lang.management.ManagementFactory
 import javax.swing.JFileChooser
 import javax.swing.JOptionPane
 import javax.swing.JOptionPane.NO_OPTION
@@ -10,6 +13,8 @@ import javax.swing.JOptionPane.YES_OPTION
 import javax.swing.UIManager
 import javax.swing.filechooser.FileNameExtensionFilter
 
+private val logger = KotlinLogging.logger {}
+
 const val configuration_file_name = "gcp-credentials.dat"
 
 fun selectFile(): File? {
@@ -135,4 +140,5 @@ fun main() {
 
     // make main window visible
     diktatGui.isVisible = true
+    logger.info { "main window visible ${ManagementFactory.getRuntimeMXBean().uptime} ms after start" }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package net.lyrex.nlp
+
+import edu.stanford.nlp.ling.CoreAnnotations
+import edu.stanford.nlp.pipeline.Annotation
+import edu.stanford.nlp.pipeline.StanfordCoreNLP
+import edu.stanford.nlp.trees.Tree
+import edu.stanford.nlp.trees.TreeCoreAnnotations
+import edu.stanford.nlp.util.CoreMap
+
+import java.util.*
+
+
+// The CoreNLP annotators of a language, split into the cheap tokenizer and sentence splitter and the expensive tagger
+// and parser. Texts are split first and only the sentences whose segmentation is not known yet are parsed.
+class NLPPipeline internal constructor(props: Properties) {
+    private val _splitter: StanfordCoreNLP
+    private val _parser: StanfordCoreNLP
+
+    init {
+        val splitterProps = Properties()
+        splitterProps.putAll(props)
+        splitterProps.setProperty("annotators", "tokenize,ssplit")
+        _splitter = StanfordCoreNLP(splitterProps)
+
+        // the parser runs on sentences split by the splitter, which the pipeline can not know about
+        val parserProps = Properties()
+        parserProps.putAll(props)
+        parserProps.setProperty("annotators", "pos,parse")
+        _parser = StanfordCoreNLP(parserProps, false)
+    }
+
+    fun split(text: String): List<CoreMap> {
+        val annotation = Annotation(text)
+        _splitter.annotate(annotation)
+
+        return annotation.get(CoreAnnotations.SentencesAnnotation::class.java) ?: listOf()
+    }
+
+    // tags and parses the given sentences of a split text in place, their trees are available through `tree`
+    fun parse(sentences: List<CoreMap>) {
+        if (sentences.isEmpty()) {
+            return
+        }
+
+        val annotation = Annotation(sentences.joinToString(separator = " ") { sentence -> text(sentence) })
+        annotation.set(CoreAnnotations.SentencesAnnotation::class.java, sentences)
+        annotation.set(
+            CoreAnnotations.TokensAnnotation::class.java,
+            sentences.flatMap { sentence -> sentence.get(CoreAnnotations.TokensAnnotation::class.java) }
+        )
+
+        _parser.annotate(annotation)
+    }
+
+    fun text(sentence: CoreMap): String = sentence.get(CoreAnnotations.TextAnnotation::class.java)
+
+    // character offsets of the sentence in the split text
+    fun begin(sentence: CoreMap): Int = sentence.get(CoreAnnotations.CharacterOffsetBeginAnnotation::class.java)
+
+    fun end(sentence: CoreMap): Int = sentence.get(CoreAnnotations.CharacterOffsetEndAnnotation::class.java)
+
+    fun tree(sentence: CoreMap): Tree = sentence.get(TreeCoreAnnotations.TreeAnnotation::class.java)
+}
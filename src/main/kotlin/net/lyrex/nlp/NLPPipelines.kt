@@ -0,0 +1,103 @@
+package net.lyrex.nlp
+
+import edu.stanford.nlp.util.StringUtils
+
+import mu.KotlinLogging
+
+import net.lyrex.audio.Language
+
+import java.lang.management.ManagementFactory
+import java.lang.ref.SoftReference
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+private val logger = KotlinLogging.logger {}
+
+
+// Process wide CoreNLP pipelines, one per CoreNLP language and parser options. A pipeline loads hundreds of MB of
+// models, so it is created on first use and shared by all processors of its language.
+//
+// The registry itself only holds the pipelines softly. A pipeline stays loaded as long as a processor uses it, the
+// pipelines of languages nobody uses anymore are unloaded by the gc once memory gets tight and loaded again on demand.
+object NLPPipelines {
+    private class Entry {
+        var pipeline: SoftReference<NLPPipeline>? = null
+    }
+
+    private val _entries = ConcurrentHashMap<Pair<String, ParserOptions>, Entry>()
+
+    // loads the pipeline if necessary, concurrent callers for the same language wait for a single load
+    @JvmStatic
+    @JvmOverloads
+    fun get(lang: Language, parserOptions: ParserOptions = ParserOptions.default): NLPPipeline {
+        val name = lang.toCoreNlpString()
+        val entry = _entries.computeIfAbsent(Pair(name, parserOptions)) { Entry() }
+
+        synchronized(entry) {
+            entry.pipeline?.get()?.let { pipeline -> return pipeline }
+
+            if (entry.pipeline != null) {
+                logger.info { "nlp pipeline for $name was unloaded, loading it again" }
+            } else {
+                logger.info { "loading nlp pipeline for $name with $parserOptions" }
+            }
+
+            val start = System.nanoTime()
+            val pipeline = NLPPipeline(properties(lang, parserOptions))
+            logger.info { "loaded nlp pipeline for $name in ${(System.nanoTime() - start) / 1_000_000} ms" }
+
+            entry.pipeline = SoftReference(pipeline)
+            return pipeline
+        }
+    }
+
+    @JvmStatic
+    @JvmOverloads
+    fun isLoaded(lang: Language, parserOptions: ParserOptions = ParserOptions.default): Boolean =
+        _entries[Pair(lang.toCoreNlpString(), parserOptions)]?.pipeline?.get() != null
+
+    // loads the pipeline and runs a short sample through it, so the first real text does not pay for class loading
+    // and an interpreted parser
+    @JvmStatic
+    fun warmUp(lang: Language) {
+        val pipeline = get(lang)
+
+        val start = System.nanoTime()
+        pipeline.parse(pipeline.split(warmUpSample(lang)))
+
+        logger.info {
+            "warmed up nlp pipeline for ${lang.toCoreNlpString()} in ${(System.nanoTime() - start) / 1_000_000} ms, " +
+                "ready ${ManagementFactory.getRuntimeMXBean().uptime} ms after start"
+        }
+    }
+
+    private fun warmUpSample(lang: Language): String {
+        return when (lang) {
+            Language.German                        ->
+                "Der alte Hund lief über die Wiese, weil er den Ball fangen wollte. Danach schlief er ein."
+            Language.EnglishUS, Language.EnglishUK ->
+                "The old dog ran across the meadow, because it wanted to catch the ball. Afterwards it fell asleep."
+            Language.Spanish                       ->
+                "El perro viejo corrió por el prado, porque quería atrapar la pelota. Después se quedó dormido."
+            Language.French                        ->
+                "Le vieux chien a traversé le pré, parce qu'il voulait attraper la balle. Ensuite il s'est endormi."
+        }
+    }
+
+    private fun properties(lang: Language, parserOptions: ParserOptions): Properties {
+        val props: Properties =
+            when (lang) {
+                Language.EnglishUS, Language.EnglishUK -> Properties()
+                else                                   -> StringUtils.argsToProperties(
+                    "-props",
+                    "StanfordCoreNLP-${lang.toCoreNlpString()}.properties"
+                )
+            }
+
+        props.setProperty("language", lang.toCoreNlpString())
+        props.setProperty("annotators", "tokenize,ssplit,pos,parse")
+        parserOptions.applyTo(props, lang)
+
+        return props
+    }
+}
@@ -1,13 +1,14 @@
 package net.lyrex.nlp
 
-import edu.stanford.nlp.pipeline.CoreSentence
-import edu.stanford.nlp.pipeline.StanfordCoreNLP
 import edu.stanford.nlp.trees.Tree
-import edu.stanford.nlp.util.StringUtils
+import edu.stanford.nlp.util.CoreMap
 
 import net.lyrex.audio.Language
 
-import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.stream.Collectors
 
 import mu.KotlinLogging
 
@@ -15,65 +16,82 @@ private val logger = KotlinLogging.logger {}
 
 fun Tree.isSentence(): Boolean = this.label().value().length == 2 && this.label().value().endsWith("P")
 
+// parts of a sentence and the characters of the input the sentence was split from
+data class DissectedSentence(val begin: Int, val end: Int, val parts: List<String>)
+
 interface INLPProcessor {
     var targetPartLength: Int
     var maxPartLength: Int
-    fun dissectText(input: String): List<List<String>>
+
+    fun dissectSentences(input: String): List<DissectedSentence>
+
+    // one future per sentence of the input, in text order, completed as the sentences are dissected
+    fun dissectSentencesAsync(input: String): List<CompletableFuture<DissectedSentence>> =
+        dissectSentences(input).map { sentence -> CompletableFuture.completedFuture(sentence) }
+
+    fun dissectText(input: String): List<List<String>> = dissectSentences(input).map { sentence -> sentence.parts }
 }
 
-class NLPProcessor(
+class NLPProcessor @JvmOverloads constructor(
     private val lang: Language, private val pronouncePunctation: Boolean,
-    override var targetPartLength: Int, override var maxPartLength: Int
+    override var targetPartLength: Int, override var maxPartLength: Int,
+    private val parserOptions: ParserOptions = ParserOptions.default,
+    private val segmentationCache: SegmentationCache? = SegmentationCache.shared
 ) : INLPProcessor {
-    private var pipeline: StanfordCoreNLP
-
-    init {
-        val props: Properties =
-            when (lang) {
-                Language.EnglishUS, Language.EnglishUK -> Properties()
-                else                                   -> StringUtils.argsToProperties(
-                    "-props",
-                    "StanfordCoreNLP-${lang.toCoreNlpString()}.properties"
-                )
+    companion object {
+        private val dissectionExecutor: ExecutorService by lazy {
+            Executors.newCachedThreadPool { r ->
+                val thread = Thread(r, "nlp-dissection")
+                thread.isDaemon = true
+                thread
             }
+        }
+    }
+
+    // fetched on first use so creating a processor never blocks on loading models, the strong reference then keeps the
+    // shared pipeline loaded for as long as this processor is in use
+    private val pipeline: NLPPipeline by lazy { NLPPipelines.get(lang, parserOptions) }
+
+    internal fun parseSubTree(tree: Tree): String {
+        val result = StringBuilder()
+        appendSubTree(tree, false, result)
 
-        props.setProperty("language", lang.toCoreNlpString())
-        props.setProperty("annotators", "tokenize,ssplit,pos,parse")
-        props.setProperty("coref.algorithm", "neural")
-        pipeline = StanfordCoreNLP(props)
+        return result.toString()
     }
 
-    private fun parseSubTree(tree: Tree, openn: Boolean = false): String {
-        var result = ""
+    // appends the segmentation of the tree to `result`. the output of every subtree is post-processed in place right
+    // after it was appended, exactly as if it had been built as a string of its own
+    private fun appendSubTree(tree: Tree, openn: Boolean, result: StringBuilder) {
+        val start = result.length
 
         when {
             tree.isPrePreTerminal -> {
-                result = "[${tree.spanString()}]"
+                result.append('[').append(tree.spanString()).append(']')
             }
             tree.isPreTerminal    -> {
-                result += "${tree.spanString()} "
+                result.append(tree.spanString()).append(' ')
             }
             tree.isPhrasal        -> {
-                var s = ""
+                val label = tree.label().value()
+                val isCoordinated = label.length == 3 && label.startsWith("C") && label.endsWith("P")
+
                 var open = openn
                 for (c in tree.children()) {
                     if (!open && c.isPreTerminal) {
-                        s = s.removePrefix(" ") + "["
+                        if (result.length > start && result[start] == ' ') {
+                            result.deleteCharAt(start)
+                        }
+                        result.append('[')
                         open = true
                     }
-                    if (open && !c.isPreTerminal &&
-                        !(tree.label().value().length == 3 &&
-                                tree.label().value().startsWith("C") &&
-                                tree.label().value().endsWith("P"))
-                    ) {
-                        s = s.removeSuffix(" ") + "]"
+                    if (open && !c.isPreTerminal && !isCoordinated) {
+                        result.removeTrailingSpace(start).append(']')
                         open = false
                     }
-                    s += parseSubTree(c, open)
+                    appendSubTree(c, open, result)
                 }
 
-                if (open) s = s.removeSuffix(" ") + "]"
-                result += s
+                if (open) result.removeTrailingSpace(start).append(']')
             }
             else                  -> {
                 throw Exception("this should never happen")
@@ -81,34 +99,26 @@ class NLPProcessor(
         }
 
         // post-process results
-        result = result
-            .replace("[[", "[")
-            .replace("]]", "]")
-        result = result
-            .replace("][,]", ", ]")
-            .replace("][.]", ".]")
-        result = result
-            .replace(" ,", ", ")
-
-        return result
+        result.replaceInPlace("[[", "[", start)
+        result.replaceInPlace("]]", "]", start)
+        result.replaceInPlace("][,]", ", ]", start)
+        result.replaceInPlace("][.]", ".]", start)
+        result.replaceInPlace(" ,", ", ", start)
     }
 
-    private fun dissectSentence(sentence: CoreSentence): List<String> {
-        val constituencyTree: Tree = sentence.constituencyParse()
-
+    internal fun dissectSentence(parsed: String): List<String> {
         // val isSentence = { node: Tree -> node.label().value().length == 2 && node.label().value().endsWith("P") }
         // val isNoSentence = { node: Tree -> !isSentence(node) }
 
-        val parsed = parseSubTree(constituencyTree)
         logger.debug { "Parsed sub tree: $parsed" }
 
-        val parts: List<String> = parsed.split("[", "]")
-
-        val preProcessedParts = flattenOncePass(parts).toMutableList()
+        // every pass works on one string builder per part and changes it in place
+        val preProcessedParts = flattenOncePass(parsed)
         fixPunctationPass(preProcessedParts)
 
         val processedList = parsePartsPass(preProcessedParts)
-        val correctedWhitespace = fixWhitespacePass(processedList)
+        fixWhitespacePass(processedList)
+        val correctedWhitespace = processedList.map { part -> part.toString() }
 
         val resultList: List<String> = if (pronouncePunctation) {
             makePunctationPronouncedPass(correctedWhitespace)
@@ -143,43 +153,45 @@ class NLPProcessor(
         return resultList
     }
 
-    private fun parsePartsPass(parts: List<String>): List<String> {
+    // joins parts as long as the joined part stays below the target length. parts that were joined into a previous
+    // one are never read again, so the first part of every join is extended in place
+    private fun parsePartsPass(parts: List<StringBuilder>): MutableList<StringBuilder> {
         var skipN = 0
 
-        val processedList = mutableListOf<String>()
+        val getPartLength = { n: Int ->
+            when {
+                parts.lastIndex > n -> parts[n].length
+                else                -> 99999
+            }
+        }
+
+        val processedList = mutableListOf<StringBuilder>()
         for ((i, part) in parts.withIndex()) {
             if (skipN > 0) {
                 skipN -= 1
                 continue
             }
 
-            val getPartLength = { n: Int ->
-                when {
-                    parts.lastIndex > n -> parts[n].length
-                    else                -> 99999
-                }
-            }
-
             if (part.length > maxPartLength || containsStopPunctation(part)) {
-                processedList.add(part)
+                processedList.addNormalized(part)
                 continue
             }
 
-            var currentPart: String = part
             for (n in 0..(parts.lastIndex - i)) {
                 val currentPartNumber = i + n
                 val partsRemaining = (parts.lastIndex - i - n) + 1
                 val isLastPart = currentPartNumber >= (parts.lastIndex - 2)
 
-                val nextPart = parts[i + n + 1]
-                if (currentPart.length < targetPartLength
+                // the last part has no part behind it, its length counts as too long to join, so the next part is only
+                // read once the join is certain
+                if (part.length < targetPartLength
                     && (partsRemaining > 2 || isLastPart)
-                    && currentPart.length + getPartLength(i + n) < targetPartLength
+                    && part.length + getPartLength(i + n) < targetPartLength
                 ) {
-                    currentPart += " $nextPart"
+                    part.append(' ').append(parts[i + n + 1])
                     skipN += 1
 
-                    if (containsStopPunctation(currentPart)) {
+                    if (containsStopPunctation(part)) {
                         break
                     }
                 } else {
@@ -187,84 +199,67 @@ class NLPProcessor(
                 }
             }
 
-            processedList.add(currentPart)
+            processedList.addNormalized(part)
         }
 
         return processedList
-            .filter { s -> s.isNotEmpty() }
-            .map { s -> s.replace("  ", " ") }
-            .map { s -> s.replace("  ", " ") }
-            .map { s -> s.trim() }
     }
 
-    private fun flattenOncePass(parts: List<String>): List<String> {
-        val preProcessedParts = mutableListOf<String>()
-
-        var skip = 0
-        parts.forEachIndexed bp@{ index, s ->
-            if (skip > 0) {
-                skip -= 1
-                return@bp
+    // the text between the brackets of the parsed sentence, runs of non-empty segments are joined into one part. the
+    // segments are appended straight from the parsed string, the last one always starts a part of its own
+    private fun flattenOncePass(parsed: String): MutableList<StringBuilder> {
+        val preProcessedParts = mutableListOf<StringBuilder>()
+        val lastIndex = parsed.count { c -> c == '[' || c == ']' }
+
+        var current: StringBuilder? = null
+        var index = 0
+        var start = 0
+        for (end in 0..parsed.length) {
+            if (end < parsed.length && parsed[end] != '[' && parsed[end] != ']') {
+                continue
             }
 
-            if (s.isEmpty()) {
-                return@bp
+            if (start == end || index == lastIndex) {
+                current?.let { part -> preProcessedParts.addNormalized(part) }
+                current = null
             }
-
-            var current = s
-            for (i in 0..(parts.lastIndex - index)) {
-                if (parts.lastIndex > index + i + 1) {
-                    if (parts[index + i + 1].isNotEmpty()) {
-                        current += " " + parts[index + i + 1]
-                        skip += 1
-                    } else {
-                        break
-                    }
-                }
+            if (start < end) {
+                current = current?.append(' ')?.append(parsed, start, end) ?: StringBuilder().append(parsed, start, end)
             }
-            preProcessedParts.add(current)
+
+            index += 1
+            start = end + 1
         }
+        current?.let { part -> preProcessedParts.addNormalized(part) }
 
         return preProcessedParts
-            .filter { s -> s.isNotEmpty() }
-            .map { s -> s.replace("  ", " ") }
-            .map { s -> s.replace("  ", " ") }
-            .map { s -> s.trim() }
     }
 
-    private fun fixPunctationPass(parts: MutableList<String>) {
+    private fun fixPunctationPass(parts: List<StringBuilder>) {
         parts.forEachIndexed { index, s ->
             if (s.isNotEmpty()) {
                 if (parts.lastIndex > index + 1) {
                     val next = parts[index + 1]
 
                     if (next.isNotEmpty()) {
+                        val colon = next.indexOf(":")
                         when {
-                            next.startsWith('.') -> {
-                                parts[index] += "."
-                                parts[index + 1] = next.removePrefix(".").trimStart()
-                            }
-                            next.startsWith('!') -> {
-                                parts[index] += "!"
-                                parts[index + 1] = next.removePrefix("!").trimStart()
-                            }
-                            next.startsWith('?') -> {
-                                parts[index] += "?"
-                                parts[index + 1] = next.removePrefix("?").trimStart()
+                            next[0] == '.' || next[0] == '!' || next[0] == '?' || next[0] == ',' -> {
+                                s.append(next[0])
+                                next.deleteCharAt(0).trimStartInPlace()
                             }
-                            next.startsWith(',') -> {
-                                parts[index] += ","
-                                parts[index + 1] = next.removePrefix(",").trimStart()
+                            colon >= 0                                                         -> {
+                                var wordStart = 0
+                                var wordEnd = colon
+                                while (wordStart < wordEnd && next[wordStart].isWhitespace()) wordStart++
+                                while (wordEnd > wordStart && next[wordEnd - 1].isWhitespace()) wordEnd--
+
+                                s.append(' ').append(next, wordStart, wordEnd).append(':')
+                                next.delete(0, colon + 1).trimStartInPlace()
                             }
-                            next.contains(':')   -> {
-                                val ps = next.split(":")
-
-                                parts[index] += " " + ps[0].trim() + ":"
-                                parts[index + 1] = next.removeRange(0..next.indexOf(":")).trimStart()
-                            }
-                            next.startsWith(';') -> {
-                                parts[index] += ";"
-                                parts[index + 1] = next.removePrefix(";").trimStart()
+                            next[0] == ';'                                                     -> {
+                                s.append(';')
+                                next.deleteCharAt(0).trimStartInPlace()
                             }
                         }
                     }
@@ -273,27 +268,19 @@ class NLPProcessor(
         }
     }
 
-    private fun fixWhitespacePass(parts: List<String>): List<String> {
-        val result = mutableListOf<String>()
-
+    private fun fixWhitespacePass(parts: List<StringBuilder>) {
         parts.forEach { s ->
-            var current = s
-
-            if (current.isNotEmpty()) {
-                current = current.replace("  ", " ")
-                current = current.replace(" .", ".")
-                current = current.replace(" !", "!")
-                current = current.replace(" ?", "?")
-                current = current.replace(" ,", ",")
-                current = current.replace(" :", ":")
-                current = current.replace("\" ", "\"")
-                current = current.replace(" \"", "\"")
+            if (s.isNotEmpty()) {
+                s.replaceInPlace("  ", " ")
+                s.replaceInPlace(" .", ".")
+                s.replaceInPlace(" !", "!")
+                s.replaceInPlace(" ?", "?")
+                s.replaceInPlace(" ,", ",")
+                s.replaceInPlace(" :", ":")
+                s.replaceInPlace("\" ", "\"")
+                s.replaceInPlace(" \"", "\"")
             }
-
-            result.add(current)
         }
-
-        return result
     }
 
     private fun makePunctationPronouncedPass(parts: List<String>): List<String> {
@@ -395,16 +382,54 @@ class NLPProcessor(
         }
     }
 
-    override fun dissectText(input: String): List<List<String>> {
-        val doc = pipeline.processToCoreDocument(input)
-
-        val sentences = doc.sentences()
+    override fun dissectSentences(input: String): List<DissectedSentence> = dissect(pipeline.split(input))
+
+    // splits the input right away and dissects its sentences in the background, in batches that double in size. the
+    // first sentence is ready after a single sentence was parsed, later batches still use all parser threads
+    override fun dissectSentencesAsync(input: String): List<CompletableFuture<DissectedSentence>> {
+        val sentences = pipeline.split(input)
+        val futures = List(sentences.size) { CompletableFuture<DissectedSentence>() }
+
+        dissectionExecutor.execute {
+            var start = 0
+            var batchSize = 1
+            try {
+                while (start < sentences.size) {
+                    val end = minOf(start + batchSize, sentences.size)
+                    dissect(sentences.subList(start, end)).forEachIndexed { i, sentence ->
+                        futures[start + i].complete(sentence)
+                    }
 
-        val parsedSentences = mutableListOf<List<String>>()
-        for (sentence in sentences) {
-            parsedSentences.add(dissectSentence(sentence))
+                    start = end
+                    batchSize *= 2
+                }
+            } catch (e: Throwable) {
+                futures.forEach { future -> future.completeExceptionally(e) }
+            }
         }
 
+        return futures
+    }
+
+    private fun dissect(sentences: List<CoreMap>): List<DissectedSentence> {
+        // only sentences whose segmentation is not cached yet go through the tagger and parser
+        val keys = sentences.map { sentence -> SegmentationKey(pipeline.text(sentence), lang, parserOptions) }
+        val cached = keys.map { key -> segmentationCache?.get(key) }
+        pipeline.parse(sentences.filterIndexed { i, _ -> cached[i] == null })
+
+        logger.info { "parsed ${cached.count { s -> s == null }} of ${sentences.size} sentences, the rest was cached" }
+
+        // the passes only read the options, so the sentences are dissected in parallel on the common fork-join pool,
+        // the ordered stream keeps them in document order
+        val parsedSentences: List<DissectedSentence> = sentences.indices.toList().parallelStream()
+            .map { i ->
+                DissectedSentence(
+                    pipeline.begin(sentences[i]), pipeline.end(sentences[i]),
+                    dissectSentence(cached[i] ?: parseSentence(sentences[i], keys[i]))
+                )
+            }
+            .collect(Collectors.toList())
+
 /*
         val sentence = sentences[4]
 
@@ -437,8 +462,57 @@ class NLPProcessor(
         return parsedSentences
     }
 
-    private fun containsStopPunctation(s: String) =
+    private fun parseSentence(sentence: CoreMap, key: SegmentationKey): String {
+        val parsed = parseSubTree(pipeline.tree(sentence))
+        segmentationCache?.set(key, parsed)
+
+        return parsed
+    }
+
+    private fun containsStopPunctation(s: CharSequence) =
         s.contains('.') || s.contains('!') || s.contains('¡') || s.contains('?')|| s.contains('¿') || s.contains(';') || s.contains(':')
 
-    private fun containsPunctation(s: String) = containsStopPunctation(s) || s.contains(',')
-}
\ No newline at end of file
+    private fun containsPunctation(s: CharSequence) = containsStopPunctation(s) || s.contains(',')
+}
+
+// drops empty parts and collapses and trims the spaces of the others, as two passes of replacing double spaces and a trim
+// did on copies of them
+private fun MutableList<StringBuilder>.addNormalized(part: StringBuilder) {
+    if (part.isNotEmpty()) {
+        part.replaceInPlace("  ", " ")
+        part.replaceInPlace("  ", " ")
+        add(part.trimInPlace())
+    }
+}
+
+// replaces the occurrences of `target` behind `from` like String.replace, but without copying the string
+private fun StringBuilder.replaceInPlace(target: String, replacement: String, from: Int = 0) {
+    var index = indexOf(target, from)
+    while (index >= 0) {
+        replace(index, index + target.length, replacement)
+        index = indexOf(target, index + replacement.length)
+    }
+}
+
+private fun StringBuilder.removeTrailingSpace(from: Int): StringBuilder {
+    if (length > from && this[length - 1] == ' ') {
+        setLength(length - 1)
+    }
+
+    return this
+}
+
+private fun StringBuilder.trimStartInPlace(): StringBuilder {
+    var start = 0
+    while (start < length && this[start].isWhitespace()) start++
+
+    return delete(0, start)
+}
+
+private fun StringBuilder.trimInPlace(): StringBuilder {
+    var end = length
+    while (end > 0 && this[end - 1].isWhitespace()) end--
+    setLength(end)
+
+    return trimStartInPlace()
+}
@@ -0,0 +1,62 @@
+package net.lyrex.nlp
+
+import net.lyrex.audio.Language
+
+import java.util.*
+
+
+enum class ParserBackend {
+    // the constituency model the CoreNLP properties of the language configure, the pcfg parser for english
+    Default,
+
+    // the shift-reduce model of the language, a lot faster than the pcfg parser at a slightly different segmentation
+    ShiftReduce;
+
+    companion object {
+        @JvmStatic
+        fun fromString(value: String?): ParserBackend =
+            values().firstOrNull { backend -> backend.name.equals(value, ignoreCase = true) } ?: Default
+    }
+}
+
+// Parser settings of a pipeline. Sentences longer than `maxLength` tokens are not parsed but kept in a single part,
+// 0 parses sentences of any length. The sentences of a document are tagged and parsed on `threads` threads.
+data class ParserOptions(
+    val backend: ParserBackend = ParserBackend.Default,
+    val maxLength: Int = 0,
+    val threads: Int = 1
+) {
+    companion object {
+        @JvmStatic
+        val default: ParserOptions
+            get() = ParserOptions(
+                ParserBackend.fromString(System.getProperty("diktat.nlp.parser")),
+                Integer.getInteger("diktat.nlp.parseMaxLength", 0),
+                Integer.getInteger("diktat.nlp.threads", Runtime.getRuntime().availableProcessors())
+            )
+    }
+
+    fun applyTo(props: Properties, lang: Language) {
+        parseModel(lang)?.let { model -> props.setProperty("parse.model", model) }
+
+        if (maxLength > 0) {
+            props.setProperty("parse.maxlen", maxLength.toString())
+        }
+
+        if (threads > 1) {
+            props.setProperty("pos.nthreads", threads.toString())
+            props.setProperty("parse.nthreads", threads.toString())
+        }
+    }
+
+    // the model the parser of the language is loaded from, null for the one the CoreNLP properties configure
+    fun parseModel(lang: Language): String? =
+        if (backend == ParserBackend.ShiftReduce) {
+            System.getProperty("diktat.nlp.parseModel") ?: shiftReduceModel(lang)
+        } else {
+            null
+        }
+
+    private fun shiftReduceModel(lang: Language): String =
+        "edu/stanford/nlp/models/srparser/${lang.toCoreNlpString()}SR.ser.gz"
+}
@@ -0,0 +1,242 @@
+package net.lyrex.nlp
+
+import mu.KotlinLogging
+
+import net.lyrex.audio.ContentHash
+import net.lyrex.audio.Language
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+private val logger = KotlinLogging.logger {}
+
+
+// the segmentation of a sentence only depends on its text, the language and the parser, not on the part lengths. the
+// parser is identified by the model it loads as well, an overridden model path gives different segmentations
+data class SegmentationKey(
+    val text: String,
+    val language: Language,
+    val backend: ParserBackend,
+    val maxLength: Int,
+    val parseModel: String?
+) {
+    constructor(text: String, language: Language, parserOptions: ParserOptions) :
+            this(text, language, parserOptions.backend, parserOptions.maxLength, parserOptions.parseModel(language))
+
+    fun contentHash(): ContentHash {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val fields = listOf(text, language.toCoreNlpString(), backend.name, maxLength.toString(), parseModel ?: "")
+        fields.forEach { field ->
+            digest.update(field.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+        }
+
+        val buffer = ByteBuffer.wrap(digest.digest())
+        return ContentHash(buffer.long, buffer.long)
+    }
+}
+
+// Persistent cache of the bracketed segmentation `parseSubTree` produces for a sentence, so reopening a text or
+// changing the part lengths does not run the parser again.
+//
+// Entries are appended to a single file as records of [hash high][hash low][length][utf-8 segmentation]. They are a few
+// hundred bytes each, so the whole file is read into memory when the cache is opened.
+//
+// At most `maxEntries` entries are kept, the least recently used ones are dropped first. Dropped and repeated records
+// stay in the file until it holds twice as many records as entries are kept, or until the next start, then the file is
+// rewritten with the kept entries only.
+class SegmentationCache(private val directory: File, private val maxEntries: Int = defaultMaxEntries) : Closeable {
+    companion object {
+        private const val RECORD_HEADER_SIZE = 20
+        private const val FILE_NAME = "segmentation.seg"
+        private const val DEFAULT_MAX_ENTRIES = 50_000
+
+        @JvmStatic
+        val defaultMaxEntries: Int
+            get() = Integer.getInteger("diktat.segmentationCache.maxEntries", DEFAULT_MAX_ENTRIES)
+
+        @JvmStatic
+        val shared: SegmentationCache? by lazy {
+            val directory = File(System.getProperty("diktat.segmentationCache.dir", "segmentation-cache"))
+
+            try {
+                val cache = SegmentationCache(directory)
+                Runtime.getRuntime().addShutdownHook(Thread { cache.close() })
+                cache
+            } catch (e: IOException) {
+                logger.warn(e) { "could not open segmentation cache in \"$directory\", continuing without it" }
+                null
+            }
+        }
+    }
+
+    private val lock = Object()
+
+    // access ordered, guarded by the lock
+    private val _entries = LinkedHashMap<ContentHash, String>(16, 0.75f, true)
+    private var _file: FileChannel
+    private var _records = 0
+
+    private val _hits = AtomicLong()
+    private val _misses = AtomicLong()
+
+    init {
+        require(maxEntries > 0) { "maxEntries must be positive" }
+        if (!directory.isDirectory && !directory.mkdirs()) {
+            throw IOException("could not create segmentation cache directory \"$directory\"")
+        }
+
+        _file = openFile()
+        load()
+        if (_records > _entries.size) {
+            compact()
+        }
+
+        logger.info { "opened segmentation cache in \"$directory\" with ${_entries.size} entries" }
+    }
+
+    operator fun get(key: SegmentationKey): String? {
+        val hash = key.contentHash()
+        val segmentation = synchronized(lock) { _entries[hash] }
+        if (segmentation == null) {
+            _misses.incrementAndGet()
+        } else {
+            _hits.incrementAndGet()
+        }
+
+        return segmentation
+    }
+
+    operator fun set(key: SegmentationKey, segmentation: String) {
+        val hash = key.contentHash()
+        val payload = segmentation.toByteArray(Charsets.UTF_8)
+
+        try {
+            synchronized(lock) {
+                if (_entries.putIfAbsent(hash, segmentation) != null) {
+                    return
+                }
+                evictIfNecessary()
+
+                append(_file, hash, payload)
+                _records += 1
+
+                if (_records > 2L * maxEntries) {
+                    compact()
+                }
+            }
+        } catch (e: IOException) {
+            logger.warn(e) { "could not write segmentation to disk" }
+        }
+    }
+
+    val hits: Long
+        get() = _hits.get()
+
+    val misses: Long
+        get() = _misses.get()
+
+    override fun close() {
+        synchronized(lock) {
+            if (_file.isOpen) {
+                _file.force(true)
+                _file.close()
+            }
+        }
+    }
+
+    private fun openFile(): FileChannel = FileChannel.open(
+        File(directory, FILE_NAME).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+    )
+
+    private fun append(file: FileChannel, hash: ContentHash, payload: ByteArray) {
+        val record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.size)
+        record.putLong(hash.high).putLong(hash.low).putInt(payload.size).put(payload).flip()
+
+        var position = file.size()
+        while (record.hasRemaining()) {
+            position += file.write(record, position)
+        }
+    }
+
+    private fun evictIfNecessary() {
+        val iterator = _entries.keys.iterator()
+        while (_entries.size > maxEntries && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+
+    // rewrites the file with the kept entries, least recently used first, and replaces the old one with it
+    private fun compact() {
+        val records = _records
+        val compacted = File(directory, "$FILE_NAME.tmp").toPath()
+
+        FileChannel.open(
+            compacted,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+        ).use { file ->
+            _entries.forEach { (hash, segmentation) -> append(file, hash, segmentation.toByteArray(Charsets.UTF_8)) }
+            file.force(true)
+        }
+
+        _file.close()
+        try {
+            Files.move(compacted, File(directory, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING)
+            _records = _entries.size
+        } finally {
+            _file = openFile()
+        }
+
+        logger.info { "compacted segmentation cache from $records to $_records records" }
+    }
+
+    private fun load() {
+        val length = _file.size()
+        val header = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+
+        var position = 0L
+        while (position + RECORD_HEADER_SIZE <= length) {
+            header.clear()
+            _file.read(header, position)
+            header.flip()
+
+            val hash = ContentHash(header.long, header.long)
+            val size = header.int
+            if (size < 0 || position + RECORD_HEADER_SIZE + size > length) {
+                break
+            }
+
+            val payload = ByteBuffer.allocate(size)
+            var payloadPosition = position + RECORD_HEADER_SIZE
+            while (payload.hasRemaining()) {
+                val read = _file.read(payload, payloadPosition)
+                if (read < 0) {
+                    break
+                }
+                payloadPosition += read
+            }
+            _entries[hash] = String(payload.array(), Charsets.UTF_8)
+            _records += 1
+
+            position += RECORD_HEADER_SIZE + size
+        }
+
+        // drop a partially written record at the end of the file, it would shadow the next append otherwise
+        if (position < length) {
+            logger.warn { "truncating incomplete segmentation cache record at offset $position" }
+            _file.truncate(position)
+        }
+
+        evictIfNecessary()
+    }
+}
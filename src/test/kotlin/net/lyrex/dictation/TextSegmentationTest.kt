@@ -0,0 +1,300 @@
+package net.lyrex.dictation
+
+import net.lyrex.nlp.DissectedSentence
+import net.lyrex.nlp.INLPProcessor
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+import java.util.concurrent.CompletableFuture
+
+
+// every sentence ends at a '.', its parts are the comma separated pieces. the inputs of all calls are recorded, so a
+// test can tell how much of the text was dissected again. with `release` set, the futures of an asynchronous dissection
+// complete once it completes
+private class SplittingProcessor : INLPProcessor {
+    override var targetPartLength = 20
+    override var maxPartLength = 40
+
+    val inputs = mutableListOf<String>()
+    var beforeDissection: () -> Unit = {}
+    var release: CompletableFuture<Void?>? = null
+
+    override fun dissectSentencesAsync(input: String): List<CompletableFuture<DissectedSentence>> {
+        val release = release ?: return super.dissectSentencesAsync(input)
+        return dissectSentences(input).map { sentence -> release.thenApply { sentence } }
+    }
+
+    override fun dissectSentences(input: String): List<DissectedSentence> {
+        beforeDissection()
+        inputs.add(input)
+
+        val sentences = mutableListOf<DissectedSentence>()
+        var position = 0
+        while (position < input.length) {
+            val begin = (position until input.length).firstOrNull { i -> !input[i].isWhitespace() } ?: break
+            val end = input.indexOf('.', begin).let { i -> if (i < 0) input.length else i + 1 }
+
+            val parts = input.substring(begin, end).split(',').map { part -> part.trim() }.filter { it.isNotEmpty() }
+            sentences.add(DissectedSentence(begin, end, parts))
+            position = end
+        }
+
+        return sentences
+    }
+}
+
+class TextSegmentationTest {
+    private val processor = SplittingProcessor()
+
+    private fun segmentation(text: String): TextSegmentation {
+        val segmentation = TextSegmentation(processor)
+        segmentation.text = text
+        assertTrue(segmentation.update())
+        processor.inputs.clear()
+
+        return segmentation
+    }
+
+    private fun dissectedFromScratch(text: String): List<List<String>> =
+        SplittingProcessor().dissectText(text)
+
+    // applies the edit to the segmentation and to a plain copy of its text
+    private fun TextSegmentation.editBoth(text: StringBuilder, offset: Int, removedLength: Int, inserted: String) {
+        edit(offset, removedLength, inserted)
+        text.replace(offset, offset + removedLength, inserted)
+    }
+
+    @Test
+    fun updateWithoutEditsKeepsTheSentences() {
+        val segmentation = segmentation("Eins, zwei. Drei. Vier, fuenf.")
+        val version = segmentation.version
+
+        assertFalse(segmentation.isDirty)
+        assertTrue(segmentation.update())
+        assertEquals(version, segmentation.version)
+        assertTrue(processor.inputs.isEmpty())
+    }
+
+    @Test
+    fun editInsideASentenceOnlyDissectsItsNeighbourhood() {
+        val text = StringBuilder("Eins. Zwei. Drei. Vier. Fuenf. Sechs.")
+        val segmentation = segmentation(text.toString())
+
+        segmentation.editBoth(text, text.indexOf("Vier") + 4, 0, ", vierzig")
+        assertTrue(segmentation.isDirty)
+        assertTrue(segmentation.update())
+
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+        assertEquals(listOf(" Drei. Vier, vierzig. Fuenf. "), processor.inputs)
+    }
+
+    @Test
+    fun removalOverlappingSeveralSentences() {
+        val text = StringBuilder("Eins. Zwei, zwei. Drei. Vier, vier. Fuenf.")
+        val segmentation = segmentation(text.toString())
+
+        // from the middle of the second sentence into the middle of the fourth
+        val offset = text.indexOf(", zwei")
+        segmentation.editBoth(text, offset, text.indexOf(", vier") - offset, "")
+        assertTrue(segmentation.update())
+
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+    }
+
+    @Test
+    fun overlappingRemovalsBeforeAnUpdate() {
+        val text = StringBuilder("Eins. Zwei. Drei. Vier. Fuenf. Sechs. Sieben.")
+        val segmentation = segmentation(text.toString())
+
+        // the second removal starts in front of the first one and reaches past its end
+        segmentation.editBoth(text, text.indexOf("Drei"), "Drei. Vier. ".length, "")
+        segmentation.editBoth(text, text.indexOf("wei."), "wei. Fuenf. Se".length, "")
+        assertTrue(segmentation.update())
+
+        assertEquals("Eins. Zchs. Sieben.", text.toString())
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+    }
+
+    @Test
+    fun removingASentenceBoundaryMergesTheSentences() {
+        val text = StringBuilder("Eins. Zwei. Drei. Vier.")
+        val segmentation = segmentation(text.toString())
+
+        segmentation.editBoth(text, text.indexOf(". Drei"), 1, ",")
+        assertTrue(segmentation.update())
+
+        assertEquals(listOf(listOf("Eins."), listOf("Zwei", "Drei."), listOf("Vier.")), segmentation.sentences)
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+    }
+
+    @Test
+    fun insertingASentenceBoundarySplitsTheSentence() {
+        val text = StringBuilder("Eins. Zwei drei. Vier.")
+        val segmentation = segmentation(text.toString())
+
+        segmentation.editBoth(text, text.indexOf(" drei"), 0, ".")
+        assertTrue(segmentation.update())
+
+        assertEquals(listOf(listOf("Eins."), listOf("Zwei."), listOf("drei."), listOf("Vier.")), segmentation.sentences)
+    }
+
+    @Test
+    fun insertionRightBehindASentenceEnd() {
+        val text = StringBuilder("Eins. Zwei. Drei.")
+        val segmentation = segmentation(text.toString())
+
+        segmentation.editBoth(text, text.indexOf(" Drei"), 0, " Neu.")
+        assertTrue(segmentation.update())
+
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+        assertEquals(4, segmentation.sentences.size)
+    }
+
+    @Test
+    fun editsAtTheStartAndTheEndOfTheText() {
+        val text = StringBuilder("Eins. Zwei. Drei.")
+        val segmentation = segmentation(text.toString())
+
+        segmentation.editBoth(text, 0, 0, "Null. ")
+        segmentation.editBoth(text, text.length, 0, " Vier.")
+        assertTrue(segmentation.update())
+
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+    }
+
+    @Test
+    fun repeatedEditsBeforeAnUpdate() {
+        val text = StringBuilder("Eins. Zwei. Drei. Vier. Fuenf. Sechs. Sieben. Acht.")
+        val segmentation = segmentation(text.toString())
+
+        // typing a word character by character, correcting it, then editing far behind it
+        val typed = text.indexOf("Zwei")
+        "neu, ".forEachIndexed { i, c -> segmentation.editBoth(text, typed + i, 0, c.toString()) }
+        segmentation.editBoth(text, text.indexOf("neu"), 3, "alt")
+        segmentation.editBoth(text, text.indexOf("Sieben"), "Sieben".length, "Sieben, sieben")
+        segmentation.editBoth(text, text.indexOf(" Acht"), 0, " Zwischen.")
+        assertTrue(segmentation.update())
+
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+        assertFalse(segmentation.isDirty)
+    }
+
+    @Test
+    fun editsWithoutAnUpdateKeepTheSentencesInOrder() {
+        val text = StringBuilder("Eins. Zwei. Drei. Vier.")
+        val segmentation = segmentation(text.toString())
+
+        for (round in 1..5) {
+            segmentation.editBoth(text, text.indexOf("Drei"), 0, "$round, ")
+            segmentation.editBoth(text, text.indexOf(". Zwei"), 1, "")
+            segmentation.editBoth(text, text.indexOf("Zwei"), 0, ". ")
+        }
+        assertTrue(segmentation.update())
+
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+    }
+
+    @Test
+    fun removingEverything() {
+        val text = StringBuilder("Eins. Zwei.")
+        val segmentation = segmentation(text.toString())
+
+        segmentation.editBoth(text, 0, text.length, "")
+        assertTrue(segmentation.update())
+
+        assertTrue(segmentation.sentences.isEmpty())
+    }
+
+    @Test
+    fun updateAfterAConcurrentEditDropsItsResult() {
+        val text = StringBuilder("Eins. Zwei. Drei.")
+        val segmentation = TextSegmentation(processor)
+        segmentation.text = text.toString()
+
+        // the text is edited while the first update dissects it
+        processor.beforeDissection = {
+            processor.beforeDissection = {}
+            segmentation.editBoth(text, text.indexOf(" Drei"), 0, " Neu.")
+        }
+
+        assertFalse(segmentation.update())
+        assertTrue(segmentation.isDirty)
+        assertTrue(segmentation.update())
+        assertEquals(dissectedFromScratch(text.toString()), segmentation.sentences)
+    }
+
+    @Test
+    fun updatesShareTheRunningDissectionOfTheWholeText() {
+        val release = CompletableFuture<Void?>()
+        processor.release = release
+
+        val segmentation = TextSegmentation(processor)
+        segmentation.text = "Eins. Zwei. Drei."
+
+        val streamed = segmentation.updateStreaming()!!
+        assertSame(streamed, segmentation.updateStreaming())
+
+        val updated = CompletableFuture.supplyAsync { segmentation.update() }
+        release.complete(null)
+
+        assertTrue(updated.join())
+        assertTrue(streamed.completion.join())
+        assertEquals(1, processor.inputs.size)
+        assertEquals(dissectedFromScratch(segmentation.text), segmentation.sentences)
+    }
+
+    @Test
+    fun streamedUpdatesStartedTogetherShareOneDissection() {
+        val release = CompletableFuture<Void?>()
+        processor.release = release
+
+        val segmentation = TextSegmentation(processor)
+        segmentation.text = "Eins. Zwei. Drei."
+
+        // a second update is started while the first one splits the text, it has to wait for the first one
+        var second: CompletableFuture<TextSegmentation.StreamedUpdate?>? = null
+        processor.beforeDissection = {
+            processor.beforeDissection = {}
+
+            val caller = CompletableFuture<Thread>()
+            second = CompletableFuture.supplyAsync {
+                caller.complete(Thread.currentThread())
+                segmentation.updateStreaming()
+            }
+
+            val thread = caller.join()
+            while (thread.state != Thread.State.BLOCKED && !second!!.isDone) {
+                Thread.onSpinWait()
+            }
+        }
+
+        val first = segmentation.updateStreaming()!!
+        assertSame(first, second!!.join())
+        release.complete(null)
+
+        assertTrue(first.completion.join())
+        assertEquals(1, processor.inputs.size)
+    }
+
+    @Test
+    fun editDuringAStreamedUpdateStartsANewOne() {
+        val release = CompletableFuture<Void?>()
+        processor.release = release
+
+        val segmentation = TextSegmentation(processor)
+        segmentation.text = "Eins. Zwei. Drei."
+
+        val streamed = segmentation.updateStreaming()!!
+        segmentation.edit(0, 0, "Null. ")
+        val restarted = segmentation.updateStreaming()!!
+        release.complete(null)
+
+        assertFalse(streamed.completion.join())
+        assertTrue(restarted.completion.join())
+        assertEquals(dissectedFromScratch(segmentation.text), segmentation.sentences)
+    }
+}
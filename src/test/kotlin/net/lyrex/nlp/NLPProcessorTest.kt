@@ -0,0 +1,345 @@
+package net.lyrex.nlp
+
+import edu.stanford.nlp.trees.Tree
+
+import net.lyrex.audio.Language
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+import kotlin.random.Random
+
+private const val TARGET_PART_LENGTH = 20
+private const val MAX_PART_LENGTH = 40
+
+
+// The segmentation passes of NLPProcessor work on string builders in place. These tests hold them against the string
+// based passes they replaced, on fixed parses with known results and on seeded random trees and parse strings.
+class NLPProcessorTest {
+    // the pipeline is only loaded on first use, the passes under test never use it
+    private val processor = NLPProcessor(
+        Language.German, false, TARGET_PART_LENGTH, MAX_PART_LENGTH, ParserOptions(), null
+    )
+    private val reference = ReferencePasses(TARGET_PART_LENGTH, MAX_PART_LENGTH)
+
+    @Test
+    fun parseSubTreeOfFixedTrees() {
+        FIXED_TREES.forEach { (penn, expected) ->
+            val tree = Tree.valueOf(penn)
+
+            assertEquals(expected, reference.parseSubTree(tree), penn)
+            assertEquals(expected, processor.parseSubTree(tree), penn)
+        }
+    }
+
+    @Test
+    fun dissectSentenceOfFixedParses() {
+        FIXED_PARSES.forEach { (parsed, expected) ->
+            assertEquals(expected, reference.dissectSentence(parsed), parsed)
+            assertEquals(expected, processor.dissectSentence(parsed), parsed)
+        }
+    }
+
+    @Test
+    fun randomTreesAreSegmentedLikeTheReference() {
+        val random = Random(20210301)
+
+        repeat(2000) {
+            val tree = Tree.valueOf(randomTree(random, random.nextInt(1, 7)))
+
+            val expected = reference.parseSubTree(tree)
+            assertEquals(expected, processor.parseSubTree(tree), tree.toString())
+            assertEquals(reference.dissectSentence(expected), processor.dissectSentence(expected), expected)
+        }
+    }
+
+    @Test
+    fun randomParsesAreDissectedLikeTheReference() {
+        val random = Random(20210302)
+
+        repeat(5000) {
+            val parsed = (0 until random.nextInt(1, 30)).joinToString("") { PARSE_TOKENS.random(random) }
+            assertEquals(reference.dissectSentence(parsed), processor.dissectSentence(parsed), parsed)
+        }
+    }
+
+    private fun randomTree(random: Random, depth: Int): String {
+        if (depth == 0 || random.nextInt(10) < 3) {
+            return "(${PRE_TERMINAL_LABELS.random(random)} ${WORDS.random(random)})"
+        }
+
+        val children = (0 until random.nextInt(1, 5)).joinToString(" ") { randomTree(random, depth - 1) }
+        return "(${PHRASE_LABELS.random(random)} $children)"
+    }
+
+    private companion object {
+        val PHRASE_LABELS = listOf("S", "NP", "VP", "PP", "CNP", "CS", "CAP")
+        val PRE_TERMINAL_LABELS = listOf("NN", "VVFIN", "ART", "\$,", "\$.")
+        val WORDS = listOf("a", "bb", "Hund", "laut", ",", ".", ":", ";", "!", "?", "\"", "[", "]")
+        val PARSE_TOKENS = listOf("[", "]", " ", "  ", "a", "bb", "ccc ddd", "Hund", ",", ".", ":", ";", "!", "?", "\"", "¿")
+
+        val FIXED_TREES = listOf(
+            Pair(
+                "(ROOT (S (NP (ART Der) (NN Hund)) (VP (VVFIN bellt) (ADV laut)) (\$. .)))",
+                "[Der Hund][bellt laut.]"
+            ),
+            Pair(
+                "(ROOT (S (CNP (NP (NN Katzen)) (KON und) (NP (NN Hunde))) (VVFIN schlafen) (\$. .)))",
+                "[Katzen][und [Hunde][schlafen .]"
+            ),
+            Pair(
+                "(ROOT (S (PPER Er) (VVFIN sagte) (\$, ,) (S (KOUS dass) (PPER er) (ADV morgen) (VVFIN kommt)) (\$. .)))",
+                "[Er sagte, ][dass er morgen kommt.]"
+            ),
+            Pair(
+                "(ROOT (S (PP (APPR Nach) (ART dem) (NN Essen)) (VVFIN gingen) (NP (PPER wir)) " +
+                    "(PP (APPR in) (ART den) (NN Park)) (\$. .)))",
+                "[Nach dem Essen][gingen][wir][in den Park.]"
+            )
+        )
+
+        val FIXED_PARSES = listOf(
+            Pair("[Der Hund][bellt laut.]", listOf("Der Hund bellt laut.")),
+            Pair(
+                "[Als er nach Hause kam][, ][sah er][den Brief auf dem Tisch liegen]" +
+                    "[, den ihm seine Schwester geschrieben hatte.]",
+                listOf(
+                    "Als er nach Hause kam,", "sah er den Brief auf dem Tisch liegen",
+                    ", den ihm seine Schwester geschrieben hatte."
+                )
+            ),
+            Pair("[Er sagte][: ][Das ist nicht wahr!]", listOf("Er sagte:", "Das ist nicht wahr!")),
+            Pair("[Katzen und Hunde][schlafen][.]", listOf("Katzen und Hunde", "schlafen.")),
+            Pair(
+                "[Das ist ein sehr langer Satzteil, der weit ueber die maximale Laenge hinausgeht][und noch ein Teil.]",
+                listOf("Das ist ein sehr langer Satzteil, der weit ueber die maximale Laenge hinausgeht", "und noch ein Teil.")
+            ),
+            Pair("[\"Komm][her\"][, rief sie][; dann ging sie.]", listOf("\"Komm her\", rief sie", "; dann ging sie.")),
+            // short sentences without a stop at the end, the join of the parts used to read past the last one
+            Pair("[Kapitel eins]", listOf("Kapitel eins")),
+            Pair("[Hallo][Welt]", listOf("Hallo Welt")),
+            Pair("[Ja][, ][genau]", listOf("Ja, genau"))
+        )
+    }
+}
+
+// the segmentation passes as they were before they worked on string builders, kept as the reference output
+private class ReferencePasses(private val targetPartLength: Int, private val maxPartLength: Int) {
+    fun parseSubTree(tree: Tree, openn: Boolean = false): String {
+        var result = ""
+
+        when {
+            tree.isPrePreTerminal -> {
+                result = "[${tree.spanString()}]"
+            }
+            tree.isPreTerminal    -> {
+                result += "${tree.spanString()} "
+            }
+            tree.isPhrasal        -> {
+                var s = ""
+                var open = openn
+                for (c in tree.children()) {
+                    if (!open && c.isPreTerminal) {
+                        s = s.removePrefix(" ") + "["
+                        open = true
+                    }
+                    if (open && !c.isPreTerminal &&
+                        !(tree.label().value().length == 3 &&
+                                tree.label().value().startsWith("C") &&
+                                tree.label().value().endsWith("P"))
+                    ) {
+                        s = s.removeSuffix(" ") + "]"
+                        open = false
+                    }
+                    s += parseSubTree(c, open)
+                }
+
+                if (open) s = s.removeSuffix(" ") + "]"
+                result += s
+            }
+            else                  -> {
+                throw Exception("this should never happen")
+            }
+        }
+
+        // post-process results
+        result = result
+            .replace("[[", "[")
+            .replace("]]", "]")
+        result = result
+            .replace("][,]", ", ]")
+            .replace("][.]", ".]")
+        result = result
+            .replace(" ,", ", ")
+
+        return result
+    }
+
+    fun dissectSentence(parsed: String): List<String> {
+        val parts: List<String> = parsed.split("[", "]")
+
+        val preProcessedParts = flattenOncePass(parts).toMutableList()
+        fixPunctationPass(preProcessedParts)
+
+        val processedList = parsePartsPass(preProcessedParts)
+        return fixWhitespacePass(processedList)
+    }
+
+    private fun parsePartsPass(parts: List<String>): List<String> {
+        var skipN = 0
+
+        val processedList = mutableListOf<String>()
+        for ((i, part) in parts.withIndex()) {
+            if (skipN > 0) {
+                skipN -= 1
+                continue
+            }
+
+            val getPartLength = { n: Int ->
+                when {
+                    parts.lastIndex > n -> parts[n].length
+                    else                -> 99999
+                }
+            }
+
+            if (part.length > maxPartLength || containsStopPunctation(part)) {
+                processedList.add(part)
+                continue
+            }
+
+            var currentPart: String = part
+            for (n in 0..(parts.lastIndex - i)) {
+                val currentPartNumber = i + n
+                val partsRemaining = (parts.lastIndex - i - n) + 1
+                val isLastPart = currentPartNumber >= (parts.lastIndex - 2)
+
+                // the next part used to be read before the condition, past the last part for short sentences
+                // without a stop at the end. the condition never holds for the last part, reading it later is the only
+                // change
+                if (currentPart.length < targetPartLength
+                    && (partsRemaining > 2 || isLastPart)
+                    && currentPart.length + getPartLength(i + n) < targetPartLength
+                ) {
+                    currentPart += " ${parts[i + n + 1]}"
+                    skipN += 1
+
+                    if (containsStopPunctation(currentPart)) {
+                        break
+                    }
+                } else {
+                    break
+                }
+            }
+
+            processedList.add(currentPart)
+        }
+
+        return processedList
+            .filter { s -> s.isNotEmpty() }
+            .map { s -> s.replace("  ", " ") }
+            .map { s -> s.replace("  ", " ") }
+            .map { s -> s.trim() }
+    }
+
+    private fun flattenOncePass(parts: List<String>): List<String> {
+        val preProcessedParts = mutableListOf<String>()
+
+        var skip = 0
+        parts.forEachIndexed bp@{ index, s ->
+            if (skip > 0) {
+                skip -= 1
+                return@bp
+            }
+
+            if (s.isEmpty()) {
+                return@bp
+            }
+
+            var current = s
+            for (i in 0..(parts.lastIndex - index)) {
+                if (parts.lastIndex > index + i + 1) {
+                    if (parts[index + i + 1].isNotEmpty()) {
+                        current += " " + parts[index + i + 1]
+                        skip += 1
+                    } else {
+                        break
+                    }
+                }
+            }
+            preProcessedParts.add(current)
+        }
+
+        return preProcessedParts
+            .filter { s -> s.isNotEmpty() }
+            .map { s -> s.replace("  ", " ") }
+            .map { s -> s.replace("  ", " ") }
+            .map { s -> s.trim() }
+    }
+
+    private fun fixPunctationPass(parts: MutableList<String>) {
+        parts.forEachIndexed { index, s ->
+            if (s.isNotEmpty()) {
+                if (parts.lastIndex > index + 1) {
+                    val next = parts[index + 1]
+
+                    if (next.isNotEmpty()) {
+                        when {
+                            next.startsWith('.') -> {
+                                parts[index] += "."
+                                parts[index + 1] = next.removePrefix(".").trimStart()
+                            }
+                            next.startsWith('!') -> {
+                                parts[index] += "!"
+                                parts[index + 1] = next.removePrefix("!").trimStart()
+                            }
+                            next.startsWith('?') -> {
+                                parts[index] += "?"
+                                parts[index + 1] = next.removePrefix("?").trimStart()
+                            }
+                            next.startsWith(',') -> {
+                                parts[index] += ","
+                                parts[index + 1] = next.removePrefix(",").trimStart()
+                            }
+                            next.contains(':')   -> {
+                                val ps = next.split(":")
+
+                                parts[index] += " " + ps[0].trim() + ":"
+                                parts[index + 1] = next.removeRange(0..next.indexOf(":")).trimStart()
+                            }
+                            next.startsWith(';') -> {
+                                parts[index] += ";"
+                                parts[index + 1] = next.removePrefix(";").trimStart()
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private fun fixWhitespacePass(parts: List<String>): List<String> {
+        val result = mutableListOf<String>()
+
+        parts.forEach { s ->
+            var current = s
+
+            if (current.isNotEmpty()) {
+                current = current.replace("  ", " ")
+                current = current.replace(" .", ".")
+                current = current.replace(" !", "!")
+                current = current.replace(" ?", "?")
+                current = current.replace(" ,", ",")
+                current = current.replace(" :", ":")
+                current = current.replace("\" ", "\"")
+                current = current.replace(" \"", "\"")
+            }
+
+            result.add(current)
+        }
+
+        return result
+    }
+
+    private fun containsStopPunctation(s: String) =
+        s.contains('.') || s.contains('!') || s.contains('¡') || s.contains('?')|| s.contains('¿') || s.contains(';') || s.contains(':')
+}
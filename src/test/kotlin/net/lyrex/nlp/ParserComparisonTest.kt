@@ -0,0 +1,78 @@
+package net.lyrex.nlp
+
+import mu.KotlinLogging
+
+import net.lyrex.audio.Language
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+
+private val logger = KotlinLogging.logger {}
+
+private const val TARGET_PART_LENGTH = 20
+private const val MAX_PART_LENGTH = 40
+
+// characters taken from the start of every bundled text, a few dozen sentences with all kinds of clauses
+private const val EXCERPT_LENGTH = 4000
+
+
+// Holds the shift-reduce backend against the default parser on the bundled texts. Both backends see the same sentences
+// and split them into parts of the same text, only where a sentence is cut may differ. The throughput of both and the
+// sentences that are cut differently are logged.
+class ParserComparisonTest {
+    @Test
+    fun germanBackendsSegmentTheSameText() = compareBackends("/ditat-der-verraeter.txt", Language.German)
+
+    @Test
+    fun spanishBackendsSegmentTheSameText() = compareBackends("/ditat-der-verraeter-spanish.txt", Language.Spanish)
+
+    private fun compareBackends(resource: String, lang: Language) {
+        val candidate = ParserOptions(ParserBackend.ShiftReduce)
+        assumeTrue(candidate.parseModel(lang)?.let { model -> javaClass.classLoader.getResource(model) } != null) {
+            "no shift-reduce model for $lang on the classpath"
+        }
+
+        val text = javaClass.getResourceAsStream(resource)!!.use { stream ->
+            stream.readBytes().toString(Charsets.UTF_8)
+        }
+        // up to the end of the last sentence that starts in the excerpt length
+        val excerpt = text.substring(0, text.lastIndexOf('.', EXCERPT_LENGTH) + 1)
+
+        val (expected, baselineMillis) = dissect(excerpt, lang, ParserOptions())
+        val (actual, candidateMillis) = dissect(excerpt, lang, candidate)
+
+        val bounds = { sentences: List<DissectedSentence> -> sentences.map { s -> s.begin..s.end } }
+        assertEquals(bounds(expected), bounds(actual))
+        expected.zip(actual).forEach { (baseline, shiftReduce) ->
+            assertEquals(partText(baseline), partText(shiftReduce), excerpt.substring(baseline.begin, baseline.end))
+        }
+
+        val differing = expected.indices.filter { i -> expected[i].parts != actual[i].parts }
+        logger.info {
+            "$resource: default parser took $baselineMillis ms, shift-reduce took $candidateMillis ms, " +
+                "${expected.size - differing.size} of ${expected.size} sentences segmented the same"
+        }
+        for (i in differing) {
+            logger.info {
+                "sentence $i:\n  ${expected[i].parts.joinToString(" | ")}\n  ${actual[i].parts.joinToString(" | ")}"
+            }
+        }
+    }
+
+    // the first run loads and warms up the pipeline and is not measured. without the segmentation cache every run
+    // parses the whole excerpt
+    private fun dissect(text: String, lang: Language, options: ParserOptions): Pair<List<DissectedSentence>, Long> {
+        val processor = NLPProcessor(lang, false, TARGET_PART_LENGTH, MAX_PART_LENGTH, options, null)
+        processor.dissectSentences(text)
+
+        val start = System.nanoTime()
+        val sentences = processor.dissectSentences(text)
+
+        return Pair(sentences, (System.nanoTime() - start) / 1_000_000)
+    }
+
+    // the text of all parts without the spaces that are normalized while the parts are built
+    private fun partText(sentence: DissectedSentence): String =
+        sentence.parts.joinToString(separator = "").filterNot { c -> c.isWhitespace() }
+}